@@ -0,0 +1,593 @@
+package nachos.bench;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+import java.util.StringTokenizer;
+
+/**
+ * A kernel that measures the performance of the machine simulation and of
+ * the kernel itself, instead of running a shell. Each benchmark is run as
+ * described in <tt>Benchmark</tt>, with the number of iterations and the
+ * user programs to run taken from the configuration file:
+ *
+ * <pre>
+ * Bench.warmups = 2
+ * Bench.iterations = 5
+ * Bench.programs = matmult.coff sort.coff
+ * Bench.blockedThreads = 10000
+ * Bench.sleepers = 5000
+ * </pre>
+ *
+ * <p>
+ * More blocked or sleeping threads than <tt>TCB.maxThreads</tt> allows cannot
+ * be created, so that must be raised along with <tt>Bench.blockedThreads</tt>
+ * and <tt>Bench.sleepers</tt>.
+ */
+public class BenchKernel extends VMKernel {
+	/**
+	 * Allocate a new benchmark kernel.
+	 */
+	public BenchKernel() {
+		super();
+	}
+
+	/**
+	 * Initialize this kernel.
+	 */
+	public void initialize(String[] args) {
+		super.initialize(args);
+
+		warmups = Config.getInteger("Bench.warmups", 2);
+		iterations = Config.getInteger("Bench.iterations", 5);
+		programs = Config.getString("Bench.programs", "matmult.coff sort.coff");
+		blockedThreads = Config.getInteger("Bench.blockedThreads", 200);
+		sleepers = Config.getInteger("Bench.sleepers", 200);
+
+		exited = new Semaphore(0);
+	}
+
+	/**
+	 * Skip the usual self tests, which wait for console input.
+	 */
+	public void selfTest() {
+	}
+
+	/**
+	 * Run every benchmark.
+	 */
+	public void run() {
+		System.out.println("Benchmarks: " + warmups + " warmup and "
+				+ iterations + " measured iterations each");
+		System.out.println("Page replacement: "
+				+ VMKernel.replacementPolicy.getClass().getName());
+
+		benchmarkInterrupts();
+		benchmarkContextSwitch();
+		benchmarkYield();
+		benchmarkFork();
+		benchmarkBlockedThreads();
+		benchmarkAlarm();
+		benchmarkSynchronization();
+		benchmarkPriorityScheduler();
+		benchmarkLotteryScheduler();
+		benchmarkFileSystem();
+
+		// don't let a benchmark process halt the machine when it exits
+		UserKernel.proLock.acquire();
+		UserKernel.runningQueue.add(-1);
+		UserKernel.proLock.release();
+
+		StringTokenizer st = new StringTokenizer(programs);
+		while (st.hasMoreTokens())
+			benchmarkProgram(st.nextToken());
+	}
+
+	/**
+	 * Called by a benchmark process when it exits.
+	 */
+	static void processExited() {
+		exited.V();
+	}
+
+	/**
+	 * Measure re-enabling interrupts, which advances simulated time, checks
+	 * for due interrupts, and runs the timer interrupt handler when it is due.
+	 */
+	private void benchmarkInterrupts() {
+		new Benchmark("interrupt enable", "enables") {
+			public long iteration() {
+				for (int i = 0; i < 100000; i++) {
+					Machine.interrupt().disable();
+					Machine.interrupt().enable();
+				}
+				return 100000;
+			}
+		}.run(warmups, iterations);
+	}
+
+	/**
+	 * Measure switching between two threads that take turns through a pair
+	 * of semaphores.
+	 */
+	private void benchmarkContextSwitch() {
+		final int rounds = 5000;
+		final Semaphore ping = new Semaphore(0);
+		final Semaphore pong = new Semaphore(0);
+
+		new Benchmark("context switch", "switches") {
+			public long iteration() {
+				KThread partner = new KThread(new Runnable() {
+					public void run() {
+						for (int i = 0; i < rounds; i++) {
+							ping.P();
+							pong.V();
+						}
+					}
+				}).setName("benchmark partner");
+				partner.fork();
+
+				for (int i = 0; i < rounds; i++) {
+					ping.V();
+					pong.P();
+				}
+
+				partner.join();
+				return 2 * rounds;
+			}
+		}.run(warmups, iterations);
+	}
+
+	/**
+	 * Measure switching between two threads that take turns by yielding to
+	 * each other.
+	 */
+	private void benchmarkYield() {
+		final int rounds = 5000;
+
+		new Benchmark("yield ping-pong", "switches") {
+			public long iteration() {
+				KThread partner = new KThread(new Runnable() {
+					public void run() {
+						for (int i = 0; i < rounds; i++)
+							KThread.yield();
+					}
+				}).setName("benchmark partner");
+				partner.fork();
+
+				for (int i = 0; i < rounds; i++)
+					KThread.yield();
+
+				partner.join();
+				return 2 * rounds;
+			}
+		}.run(warmups, iterations);
+	}
+
+	/**
+	 * Measure forking, running and joining many short-lived threads, a
+	 * group at a time.
+	 */
+	private void benchmarkFork() {
+		final int numThreads = 10000, groupSize = 100;
+		final KThread[] group = new KThread[groupSize];
+		final Runnable nothing = new Runnable() {
+			public void run() {
+			}
+		};
+
+		new Benchmark("fork/join", "threads") {
+			public long iteration() {
+				for (int i = 0; i < numThreads; i += groupSize) {
+					for (int j = 0; j < groupSize; j++) {
+						group[j] = new KThread(nothing).setName("forked");
+						group[j].fork();
+					}
+					for (int j = 0; j < groupSize; j++)
+						group[j].join();
+				}
+				return numThreads;
+			}
+		}.run(warmups, iterations);
+	}
+
+	/**
+	 * Measure forking many threads that all stay blocked until the last has
+	 * started, and then releasing and joining them. Also report how much heap
+	 * each blocked thread takes.
+	 */
+	private void benchmarkBlockedThreads() {
+		final int numThreads = blockedThreads;
+		final KThread[] threads = new KThread[numThreads];
+		final Semaphore started = new Semaphore(0);
+		final Semaphore release = new Semaphore(0);
+		final Runnable blocker = new Runnable() {
+			public void run() {
+				started.V();
+				release.P();
+			}
+		};
+		final long[] heapPerThread = new long[1];
+
+		new Benchmark(numThreads + " blocked threads", "threads") {
+			public long iteration() {
+				long heapBefore = usedHeap();
+
+				for (int i = 0; i < numThreads; i++) {
+					threads[i] = new KThread(blocker).setName("blocked");
+					threads[i].fork();
+				}
+				for (int i = 0; i < numThreads; i++)
+					started.P();
+
+				heapPerThread[0] = (usedHeap() - heapBefore) / numThreads;
+
+				for (int i = 0; i < numThreads; i++)
+					release.V();
+				for (int i = 0; i < numThreads; i++) {
+					threads[i].join();
+					threads[i] = null;
+				}
+
+				return numThreads;
+			}
+		}.run(warmups, iterations);
+
+		// the Java threads are pooled by then, so this is the kernel's share
+		System.out.println("  heap per blocked thread: " + heapPerThread[0]
+				+ " bytes, not counting its Java thread");
+	}
+
+	/**
+	 * Measure forking many threads that each sleep in the alarm for a
+	 * different time, spread over a hundred timer interrupts, and joining
+	 * them, so that every timer interrupt has many sleepers to look through.
+	 */
+	private void benchmarkAlarm() {
+		final int numThreads = sleepers;
+		final long span = 100 * Stats.TimerTicks;
+		final KThread[] threads = new KThread[numThreads];
+
+		new Benchmark(numThreads + " sleepers", "threads") {
+			public long iteration() {
+				for (int i = 0; i < numThreads; i++) {
+					final long ticks = (i * 7919L) % span;
+					threads[i] = new KThread(new Runnable() {
+						public void run() {
+							ThreadedKernel.alarm.waitUntil(ticks);
+						}
+					}).setName("sleeper");
+					threads[i].fork();
+				}
+				for (int i = 0; i < numThreads; i++) {
+					threads[i].join();
+					threads[i] = null;
+				}
+
+				return numThreads;
+			}
+		}.run(warmups, iterations);
+	}
+
+	/**
+	 * Return the number of bytes of heap in use, after collecting garbage.
+	 */
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		runtime.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * Measure uncontended lock and semaphore operations.
+	 */
+	private void benchmarkSynchronization() {
+		final Lock lock = new Lock();
+		final Semaphore semaphore = new Semaphore(0);
+
+		new Benchmark("lock acquire/release", "cycles") {
+			public long iteration() {
+				for (int i = 0; i < 100000; i++) {
+					lock.acquire();
+					lock.release();
+				}
+				return 100000;
+			}
+		}.run(warmups, iterations);
+
+		new Benchmark("semaphore V/P", "cycles") {
+			public long iteration() {
+				for (int i = 0; i < 100000; i++) {
+					semaphore.V();
+					semaphore.P();
+				}
+				return 100000;
+			}
+		}.run(warmups, iterations);
+	}
+
+	/**
+	 * Measure a priority queue as more and more threads wait on it, and
+	 * passing a change of priority down chains of donations. The threads
+	 * never run; they only exist to be queued.
+	 */
+	private void benchmarkPriorityScheduler() {
+		PriorityScheduler scheduler = new PriorityScheduler();
+
+		for (int numThreads = 16; numThreads <= 4096; numThreads *= 16)
+			benchmarkPriorityQueue(scheduler, numThreads);
+
+		for (int depth = 4; depth <= 64; depth *= 4)
+			benchmarkDonationChain(scheduler, depth);
+	}
+
+	/**
+	 * Measure taking the next thread from a priority queue and putting it
+	 * back, with <i>numThreads</i> of random priorities waiting.
+	 */
+	private void benchmarkPriorityQueue(final PriorityScheduler scheduler,
+			int numThreads) {
+		final ThreadQueue queue = scheduler.newThreadQueue(false);
+
+		boolean intStatus = Machine.interrupt().disable();
+		for (int i = 0; i < numThreads; i++) {
+			KThread thread = new KThread();
+			scheduler.setPriority(thread,
+					Lib.random(PriorityScheduler.priorityMaximum + 1));
+			queue.waitForAccess(thread);
+		}
+		Machine.interrupt().restore(intStatus);
+
+		new Benchmark("priority queue, " + numThreads + " waiting", "cycles") {
+			public long iteration() {
+				boolean intStatus = Machine.interrupt().disable();
+				for (int i = 0; i < 100000; i++)
+					queue.waitForAccess(queue.nextThread());
+				Machine.interrupt().restore(intStatus);
+
+				return 100000;
+			}
+		}.run(warmups, iterations);
+	}
+
+	/**
+	 * Measure raising and lowering the priority of the last thread in a
+	 * chain of <i>depth</i> threads, each waiting for a lock held by the
+	 * next, so that every change is donated down the whole chain.
+	 */
+	private void benchmarkDonationChain(final PriorityScheduler scheduler,
+			int depth) {
+		final KThread last = new KThread();
+
+		boolean intStatus = Machine.interrupt().disable();
+		KThread waiter = last;
+		for (int i = 0; i < depth; i++) {
+			KThread holder = new KThread();
+			ThreadQueue lock = scheduler.newThreadQueue(true);
+			lock.acquire(holder);
+			lock.waitForAccess(waiter);
+			waiter = holder;
+		}
+		Machine.interrupt().restore(intStatus);
+
+		new Benchmark("donation chain, " + depth + " deep", "changes") {
+			public long iteration() {
+				boolean intStatus = Machine.interrupt().disable();
+				for (int i = 0; i < 10000; i++) {
+					scheduler.setPriority(last,
+							PriorityScheduler.priorityMaximum);
+					scheduler.setPriority(last,
+							PriorityScheduler.priorityMinimum);
+				}
+				Machine.interrupt().restore(intStatus);
+
+				return 20000;
+			}
+		}.run(warmups, iterations);
+	}
+
+	/**
+	 * Check that a lottery queue picks threads in proportion to their
+	 * tickets, then measure it as more and more threads wait on it.
+	 */
+	private void benchmarkLotteryScheduler() {
+		LotteryScheduler scheduler = new LotteryScheduler();
+
+		checkLotteryFairness(scheduler);
+
+		for (int numThreads = 16; numThreads <= 4096; numThreads *= 16)
+			benchmarkLotteryQueue(scheduler, numThreads);
+	}
+
+	/**
+	 * Hold many lotteries among threads with 1, 2, 3 and 4 tickets, and
+	 * check that each wins its share, to within a percent.
+	 */
+	private void checkLotteryFairness(LotteryScheduler scheduler) {
+		final int numThreads = 4, draws = 100000;
+		ThreadQueue queue = scheduler.newThreadQueue(false);
+		KThread[] threads = new KThread[numThreads];
+		int[] wins = new int[numThreads];
+
+		boolean intStatus = Machine.interrupt().disable();
+		for (int i = 0; i < numThreads; i++) {
+			threads[i] = new KThread();
+			scheduler.setPriority(threads[i], i + 1);
+			queue.waitForAccess(threads[i]);
+		}
+
+		for (int draw = 0; draw < draws; draw++) {
+			KThread winner = queue.nextThread();
+			for (int i = 0; i < numThreads; i++) {
+				if (threads[i] == winner)
+					wins[i]++;
+			}
+			queue.waitForAccess(winner);
+		}
+		Machine.interrupt().restore(intStatus);
+
+		int totalTickets = numThreads * (numThreads + 1) / 2;
+
+		System.out.print("lottery shares (expected): ");
+		for (int i = 0; i < numThreads; i++) {
+			double share = (double) wins[i] / draws;
+			double expected = (double) (i + 1) / totalTickets;
+			System.out.print(" " + Math.round(share * 1000) / 10.0 + "% ("
+					+ Math.round(expected * 1000) / 10.0 + "%)");
+
+			Lib.assertTrue(Math.abs(share - expected) < 0.01,
+					"lottery is unfair to a thread with " + (i + 1) + " tickets");
+		}
+		System.out.println();
+	}
+
+	/**
+	 * Measure drawing the next thread from a lottery queue and putting it
+	 * back, with <i>numThreads</i> holding random numbers of tickets waiting.
+	 */
+	private void benchmarkLotteryQueue(final LotteryScheduler scheduler,
+			int numThreads) {
+		final ThreadQueue queue = scheduler.newThreadQueue(false);
+
+		boolean intStatus = Machine.interrupt().disable();
+		for (int i = 0; i < numThreads; i++) {
+			KThread thread = new KThread();
+			scheduler.setPriority(thread, 1 + Lib.random(1000));
+			queue.waitForAccess(thread);
+		}
+		Machine.interrupt().restore(intStatus);
+
+		new Benchmark("lottery queue, " + numThreads + " waiting", "cycles") {
+			public long iteration() {
+				boolean intStatus = Machine.interrupt().disable();
+				for (int i = 0; i < 100000; i++)
+					queue.waitForAccess(queue.nextThread());
+				Machine.interrupt().restore(intStatus);
+
+				return 100000;
+			}
+		}.run(warmups, iterations);
+	}
+
+	/**
+	 * Measure writing and then reading back a file, a block at a time.
+	 */
+	private void benchmarkFileSystem() {
+		if (fileSystem == null)
+			return;
+
+		final int blockSize = 4096, numBlocks = 256;
+		final byte[] buffer = new byte[blockSize];
+
+		new Benchmark("file system write", "bytes") {
+			public long iteration() {
+				OpenFile file = fileSystem.open(fileName, true);
+				Lib.assertTrue(file != null, "could not create " + fileName);
+
+				for (int i = 0; i < numBlocks; i++)
+					Lib.assertTrue(file.write(buffer, 0, blockSize) == blockSize);
+
+				file.close();
+				return blockSize * numBlocks;
+			}
+		}.run(warmups, iterations);
+
+		new Benchmark("file system read", "bytes") {
+			public long iteration() {
+				OpenFile file = fileSystem.open(fileName, false);
+				Lib.assertTrue(file != null, "could not open " + fileName);
+
+				for (int i = 0; i < numBlocks; i++)
+					Lib.assertTrue(file.read(buffer, 0, blockSize) == blockSize);
+
+				file.close();
+				return blockSize * numBlocks;
+			}
+		}.run(warmups, iterations);
+
+		fileSystem.remove(fileName);
+	}
+
+	/**
+	 * Measure running a user program to completion, in simulated ticks per
+	 * second, and the time the kernel takes to service its page faults.
+	 *
+	 * @param program the name of the program's executable.
+	 */
+	private void benchmarkProgram(final String program) {
+		new Benchmark("processor " + program, "ticks") {
+			public long iteration() {
+				long startTime = Machine.timer().getTime();
+				runProgram(program);
+				return Machine.timer().getTime() - startTime;
+			}
+		}.run(warmups, iterations);
+
+		KernelStats stats = Machine.kernelStats();
+		int startFaults = stats.getNumPageFaults();
+		int startSwapReads = stats.numSwapReads;
+		int startSwapWrites = stats.numSwapWrites;
+		int startSwapFileOps = stats.numSwapFileOps;
+		int startFaultEvictions = stats.numFaultEvictions;
+		int startPageOuts = stats.numPageOuts;
+		long startFaultTicks = stats.faultTicks;
+
+		new Benchmark("page fault " + program, "faults") {
+			public long iteration() {
+				long startFaults = BenchProcess.pageFaults;
+				runProgram(program);
+				return BenchProcess.pageFaults - startFaults;
+			}
+
+			// only count the time spent in the page fault handler
+			protected long time() {
+				return BenchProcess.pageFaultTime;
+			}
+		}.run(warmups, iterations);
+
+		// the average over every run, warmups included
+		int runs = warmups + iterations;
+		int faults = stats.getNumPageFaults() - startFaults;
+		System.out.println("  per run: "
+				+ faults / runs + " page faults, "
+				+ (stats.numSwapReads - startSwapReads) / runs + " swap reads, "
+				+ (stats.numSwapWrites - startSwapWrites) / runs
+				+ " swap writes, "
+				+ (stats.numSwapFileOps - startSwapFileOps) / runs
+				+ " swap file operations");
+		System.out.println("  per run: "
+				+ (stats.numFaultEvictions - startFaultEvictions) / runs
+				+ " pages evicted by faults, "
+				+ (stats.numPageOuts - startPageOuts) / runs
+				+ " by the page-out daemon, "
+				+ (faults > 0 ? (stats.faultTicks - startFaultTicks) / faults : 0)
+				+ " ticks per fault");
+	}
+
+	/**
+	 * Run a user program and wait for it to exit.
+	 *
+	 * @param program the name of the program's executable.
+	 */
+	private void runProgram(String program) {
+		BenchProcess process = new BenchProcess();
+		Lib.assertTrue(process.execute(program, new String[] {}),
+				"could not run " + program);
+
+		exited.P();
+	}
+
+	private int warmups, iterations;
+
+	private String programs;
+
+	private int blockedThreads;
+
+	private int sleepers;
+
+	private static Semaphore exited;
+
+	private static final String fileName = "bench.tmp";
+}
@@ -0,0 +1,56 @@
+package nachos.bench;
+
+import nachos.machine.*;
+import nachos.vm.*;
+
+/**
+ * A <tt>VMProcess</tt> that tells the benchmark kernel when it exits, and
+ * measures how long the kernel takes to service its page faults.
+ */
+public class BenchProcess extends VMProcess {
+	/**
+	 * Allocate a new process.
+	 */
+	public BenchProcess() {
+		super();
+	}
+
+	/**
+	 * Release this process's memory, then tell the benchmark kernel that it
+	 * has exited, so that the next program never runs alongside this one.
+	 */
+	protected void unloadSections() {
+		super.unloadSections();
+
+		BenchKernel.processExited();
+	}
+
+	/**
+	 * Handle a user exception, timing it if it is a page fault. A benchmark
+	 * program should only ever take syscalls and page faults.
+	 */
+	public void handleException(int cause) {
+		switch (cause) {
+		case Processor.exceptionSyscall:
+			super.handleException(cause);
+			break;
+
+		case Processor.exceptionPageFault:
+			long startTime = System.nanoTime();
+			super.handleException(cause);
+			pageFaultTime += System.nanoTime() - startTime;
+			pageFaults++;
+			break;
+
+		default:
+			Lib.assertNotReached("benchmark program raised "
+					+ Processor.exceptionNames[cause]);
+		}
+	}
+
+	/** Page faults serviced for all benchmark processes. */
+	static long pageFaults = 0;
+
+	/** Nanoseconds spent servicing those page faults. */
+	static long pageFaultTime = 0;
+}
@@ -0,0 +1,110 @@
+package nachos.bench;
+
+import nachos.machine.*;
+
+/**
+ * A repeatable measurement of some part of Nachos. A benchmark is run for a
+ * number of warmup iterations, so that the JVM has compiled the code being
+ * measured, and then for a number of measured iterations, each timed
+ * separately. The result is reported as the mean and standard deviation of
+ * the time per operation, and the corresponding throughput.
+ *
+ * <p>
+ * Subclasses implement <tt>iteration()</tt>, which performs some number of
+ * operations and returns how many it performed.
+ */
+public abstract class Benchmark {
+	/**
+	 * Allocate a new benchmark.
+	 *
+	 * @param name the name to report results under.
+	 * @param unit what one operation is, for example <tt>"switches"</tt>.
+	 */
+	public Benchmark(String name, String unit) {
+		this.name = name;
+		this.unit = unit;
+	}
+
+	/**
+	 * Perform one iteration of this benchmark.
+	 *
+	 * @return the number of operations performed.
+	 */
+	public abstract long iteration();
+
+	/**
+	 * Return the clock that iterations are timed with. By default this is
+	 * <tt>System.nanoTime()</tt>; a benchmark that only measures part of each
+	 * iteration can return a running total of the time spent in that part.
+	 *
+	 * @return the current time, in nanoseconds.
+	 */
+	protected long time() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Run this benchmark and print a line of results.
+	 *
+	 * @param warmups the number of iterations to run before measuring.
+	 * @param iterations the number of iterations to measure.
+	 */
+	public void run(int warmups, int iterations) {
+		Lib.assertTrue(warmups >= 0 && iterations > 0);
+
+		for (int i = 0; i < warmups; i++)
+			iteration();
+
+		double[] nanosPerOp = new double[iterations];
+		for (int i = 0; i < iterations; i++) {
+			long startTime = time();
+			long ops = iteration();
+			long elapsed = time() - startTime;
+
+			Lib.assertTrue(ops > 0, name + " performed no operations");
+			nanosPerOp[i] = (double) elapsed / ops;
+		}
+
+		report(nanosPerOp);
+	}
+
+	private void report(double[] nanosPerOp) {
+		double mean = 0;
+		for (int i = 0; i < nanosPerOp.length; i++)
+			mean += nanosPerOp[i];
+		mean /= nanosPerOp.length;
+
+		double variance = 0;
+		for (int i = 0; i < nanosPerOp.length; i++)
+			variance += (nanosPerOp[i] - mean) * (nanosPerOp[i] - mean);
+		if (nanosPerOp.length > 1)
+			variance /= nanosPerOp.length - 1;
+
+		System.out.println(pad(name, 28)
+				+ pad(format(mean) + " +- " + format(Math.sqrt(variance))
+						+ " ns/op", 28) + format(1e9 / mean) + " " + unit
+				+ "/s");
+	}
+
+	private static String format(double value) {
+		if (value >= 100)
+			return Long.toString(Math.round(value));
+		else
+			return Double.toString(Math.round(value * 100) / 100.0);
+	}
+
+	private static String pad(String s, int width) {
+		StringBuffer buffer = new StringBuffer(s);
+		while (buffer.length() < width)
+			buffer.append(' ');
+		buffer.append(' ');
+
+		return buffer.toString();
+	}
+
+	/** The name to report results under. */
+	protected String name;
+
+	/** What one operation is. */
+	protected String unit;
+}
@@ -4,9 +4,8 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.ArrayList;
+import java.util.Collections;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -52,7 +51,6 @@ public final class Interrupt {
 		privilege.interrupt = new InterruptPrivilege();
 
 		enabled = false;
-		pending = new TreeSet<PendingInterrupt>();
 	}
 
 	/**
@@ -123,24 +121,34 @@ public final class Interrupt {
 		Lib.assertTrue(when > 0);
 
 		long time = privilege.stats.totalTicks + when;
-		PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
+		PendingInterrupt toOccur = newPendingInterrupt(time, type, handler);
 
-		Lib.debug(dbgInt, "Scheduling the " + type
-				+ " interrupt handler at time = " + time);
+		if (Lib.test(dbgInt))
+			System.out.println("Scheduling the " + type
+					+ " interrupt handler at time = " + time);
+
+		add(toOccur);
 
-		pending.add(toOccur);
+		if (time < nextDue)
+			nextDue = time;
 	}
 
 	private void tick(boolean inKernelMode) {
+		tick(inKernelMode, 1);
+	}
+
+	private void tick(boolean inKernelMode, int count) {
 		Stats stats = privilege.stats;
 
+		Lib.assertTrue(count > 0);
+
 		if (inKernelMode) {
-			stats.kernelTicks += Stats.KernelTick;
-			stats.totalTicks += Stats.KernelTick;
+			stats.kernelTicks += count * Stats.KernelTick;
+			stats.totalTicks += count * Stats.KernelTick;
 		}
 		else {
-			stats.userTicks += Stats.UserTick;
-			stats.totalTicks += Stats.UserTick;
+			stats.userTicks += count * Stats.UserTick;
+			stats.totalTicks += count * Stats.UserTick;
 		}
 
 		if (Lib.test(dbgInt))
@@ -151,6 +159,14 @@ public final class Interrupt {
 		enabled = true;
 	}
 
+	private long ticksUntilDue() {
+		// every tick is traced, so none may be skipped
+		if (Lib.test(dbgInt))
+			return 1;
+
+		return nextDue - privilege.stats.totalTicks;
+	}
+
 	private void checkIfDue() {
 		long time = privilege.stats.totalTicks;
 
@@ -159,39 +175,206 @@ public final class Interrupt {
 		if (Lib.test(dbgInt))
 			print();
 
-		if (pending.isEmpty())
+		// the common case: nothing is due yet
+		if (time < nextDue)
 			return;
 
-		if (((PendingInterrupt) pending.first()).time > time)
+		advance(time);
+
+		if (ready == null) {
+			nextDue = wheelMinimum();
 			return;
+		}
 
-		Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
+		if (Lib.test(dbgInt))
+			System.out.println("Invoking interrupt handlers at time = " + time);
 
-		while (!pending.isEmpty()
-				&& ((PendingInterrupt) pending.first()).time <= time) {
-			PendingInterrupt next = (PendingInterrupt) pending.first();
-			pending.remove(next);
+		while (ready != null && ready.time <= time) {
+			PendingInterrupt next = ready;
+			ready = next.next;
 
 			Lib.assertTrue(next.time <= time);
 
+			String type = next.type;
+			Runnable handler = next.handler;
+			free(next);
+
+			// the handler may switch threads, and whoever ticks next must
+			// still find anything left over
+			nextDue = (ready != null) ? ready.time : wheelMinimum();
+
 			if (privilege.processor != null)
 				privilege.processor.flushPipe();
 
-			Lib.debug(dbgInt, "  " + next.type);
+			if (Lib.test(dbgInt))
+				System.out.println("  " + type);
 
-			next.handler.run();
+			handler.run();
 		}
 
 		Lib.debug(dbgInt, "  (end of list)");
 	}
 
+	/**
+	 * Add an interrupt to the wheel, at the lowest level whose slots tell its
+	 * time apart from <tt>wheelTime</tt>. Every interrupt on level 0 of the
+	 * wheel is due within the same 64 ticks as <tt>wheelTime</tt>, and a
+	 * level 0 slot holds interrupts for exactly one tick. Every interrupt on
+	 * level 1 is due within the same 4096 ticks, and so on. Interrupts too far
+	 * in the future for any level are kept in <tt>overflow</tt>.
+	 */
+	private void add(PendingInterrupt toOccur) {
+		long difference = toOccur.time ^ wheelTime;
+		int level = (difference == 0) ? 0
+				: (63 - Long.numberOfLeadingZeros(difference)) / slotBits;
+
+		if (level >= numLevels) {
+			toOccur.next = overflow;
+			overflow = toOccur;
+			return;
+		}
+
+		int slot = (int) (toOccur.time >>> (level * slotBits)) & slotMask;
+
+		toOccur.next = wheel[level][slot];
+		wheel[level][slot] = toOccur;
+		occupied[level] |= 1L << slot;
+	}
+
+	/**
+	 * Move every interrupt due at or before <i>time</i> to the ready list, and
+	 * advance <tt>wheelTime</tt> past <i>time</i>. Only the slots that
+	 * <tt>wheelTime</tt> moves over are visited; each interrupt in them is
+	 * either due, or moves down to a lower level.
+	 */
+	private void advance(long time) {
+		long oldTime = wheelTime;
+		wheelTime = time + 1;
+
+		for (int level = 0; level < numLevels; level++) {
+			long slots = occupied[level];
+			if (slots == 0)
+				continue;
+
+			int above = (level + 1) * slotBits;
+
+			// unless the wheel left this level's range, only earlier slots
+			// and the current one can hold anything to move
+			if ((wheelTime >>> above) == (oldTime >>> above)) {
+				int current = (int) (wheelTime >>> (level * slotBits))
+						& slotMask;
+				slots &= (2L << current) - 1;
+			}
+
+			while (slots != 0) {
+				int slot = Long.numberOfTrailingZeros(slots);
+				slots &= slots - 1;
+
+				PendingInterrupt list = wheel[level][slot];
+				wheel[level][slot] = null;
+				occupied[level] &= ~(1L << slot);
+
+				redistribute(list, time);
+			}
+		}
+
+		PendingInterrupt list = overflow;
+		overflow = null;
+		redistribute(list, time);
+	}
+
+	/** Move each interrupt in <i>list</i> to the ready list or the wheel. */
+	private void redistribute(PendingInterrupt list, long time) {
+		while (list != null) {
+			PendingInterrupt toOccur = list;
+			list = list.next;
+
+			if (toOccur.time <= time)
+				addReady(toOccur);
+			else
+				add(toOccur);
+		}
+	}
+
+	/** Insert an interrupt that is due into the ready list, in order. */
+	private void addReady(PendingInterrupt toOccur) {
+		if (ready == null || toOccur.compareTo(ready) < 0) {
+			toOccur.next = ready;
+			ready = toOccur;
+			return;
+		}
+
+		PendingInterrupt before = ready;
+		while (before.next != null && before.next.compareTo(toOccur) < 0)
+			before = before.next;
+
+		toOccur.next = before.next;
+		before.next = toOccur;
+	}
+
+	/**
+	 * Return the time of the earliest interrupt still in the wheel, or
+	 * <tt>Long.MAX_VALUE</tt> if there is none. Interrupts on a lower level
+	 * are always due before those on a higher level, and within a level the
+	 * lowest occupied slot comes first.
+	 */
+	private long wheelMinimum() {
+		for (int level = 0; level < numLevels; level++) {
+			if (occupied[level] == 0)
+				continue;
+
+			int slot = Long.numberOfTrailingZeros(occupied[level]);
+			return minimum(wheel[level][slot]);
+		}
+
+		return minimum(overflow);
+	}
+
+	private long minimum(PendingInterrupt list) {
+		long time = Long.MAX_VALUE;
+		for (; list != null; list = list.next)
+			time = Math.min(time, list.time);
+
+		return time;
+	}
+
+	private PendingInterrupt newPendingInterrupt(long time, String type,
+			Runnable handler) {
+		PendingInterrupt toOccur = freeList;
+		if (toOccur == null)
+			return new PendingInterrupt(time, type, handler);
+
+		freeList = toOccur.next;
+		toOccur.set(time, type, handler);
+		return toOccur;
+	}
+
+	private void free(PendingInterrupt toOccur) {
+		toOccur.set(0, null, null);
+		toOccur.next = freeList;
+		freeList = toOccur;
+	}
+
 	private void print() {
 		System.out.println("Time: " + privilege.stats.totalTicks
 				+ ", interrupts " + (enabled ? "on" : "off"));
 		System.out.println("Pending interrupts:");
 
-		for (Iterator i = pending.iterator(); i.hasNext();) {
-			PendingInterrupt toOccur = (PendingInterrupt) i.next();
+		ArrayList<PendingInterrupt> all = new ArrayList<PendingInterrupt>();
+		for (PendingInterrupt p = ready; p != null; p = p.next)
+			all.add(p);
+		for (int level = 0; level < numLevels; level++) {
+			for (int slot = 0; slot < numSlots; slot++) {
+				for (PendingInterrupt p = wheel[level][slot]; p != null; p = p.next)
+					all.add(p);
+			}
+		}
+		for (PendingInterrupt p = overflow; p != null; p = p.next)
+			all.add(p);
+
+		Collections.sort(all);
+
+		for (PendingInterrupt toOccur : all) {
 			System.out.println("  " + toOccur.type + ", scheduled at "
 					+ toOccur.time);
 		}
@@ -199,17 +382,19 @@ public final class Interrupt {
 		System.out.println("  (end of list)");
 	}
 
-	private class PendingInterrupt implements Comparable {
+	private class PendingInterrupt implements Comparable<PendingInterrupt> {
 		PendingInterrupt(long time, String type, Runnable handler) {
+			set(time, type, handler);
+		}
+
+		void set(long time, String type, Runnable handler) {
 			this.time = time;
 			this.type = type;
 			this.handler = handler;
 			this.id = numPendingInterruptsCreated++;
 		}
 
-		public int compareTo(Object o) {
-			PendingInterrupt toOccur = (PendingInterrupt) o;
-
+		public int compareTo(PendingInterrupt toOccur) {
 			// can't return 0 for unequal objects, so check all fields
 			if (time < toOccur.time)
 				return -1;
@@ -230,6 +415,9 @@ public final class Interrupt {
 		Runnable handler;
 
 		private long id;
+
+		/** The next interrupt in the same slot, list, or free list. */
+		PendingInterrupt next;
 	}
 
 	private long numPendingInterruptsCreated = 0;
@@ -238,7 +426,48 @@ public final class Interrupt {
 
 	private boolean enabled;
 
-	private TreeSet<PendingInterrupt> pending;
+	/** Bits of the time that select a slot on each level of the wheel. */
+	private static final int slotBits = 6;
+
+	private static final int numSlots = 1 << slotBits;
+
+	private static final int slotMask = numSlots - 1;
+
+	/** The wheel spans 2^24 ticks; anything later goes in the overflow. */
+	private static final int numLevels = 4;
+
+	/**
+	 * Pending interrupts, indexed by level and slot. Each slot is a list
+	 * linked through <tt>PendingInterrupt.next</tt>.
+	 */
+	private PendingInterrupt[][] wheel = new PendingInterrupt[numLevels][numSlots];
+
+	/**
+	 * Bit <i>s</i> of element <i>l</i> is set if slot <i>s</i> of level
+	 * <i>l</i> is not empty.
+	 */
+	private long[] occupied = new long[numLevels];
+
+	/** Interrupts due too far past <tt>wheelTime</tt> to fit in the wheel. */
+	private PendingInterrupt overflow = null;
+
+	/**
+	 * The time the wheel is positioned at. Every interrupt in the wheel is
+	 * due at or after this time.
+	 */
+	private long wheelTime = 0;
+
+	/** Interrupts that are due, in the order their handlers must run. */
+	private PendingInterrupt ready = null;
+
+	/**
+	 * No interrupt is due before this time, so until it arrives a tick need
+	 * not look at the wheel.
+	 */
+	private long nextDue = Long.MAX_VALUE;
+
+	/** Interrupts that have been handled, for reuse. */
+	private PendingInterrupt freeList = null;
 
 	private static final char dbgInt = 'i';
 
@@ -250,5 +479,13 @@ public final class Interrupt {
 		public void tick(boolean inKernelMode) {
 			Interrupt.this.tick(inKernelMode);
 		}
+
+		public void tick(boolean inKernelMode, int count) {
+			Interrupt.this.tick(inKernelMode, count);
+		}
+
+		public long ticksUntilDue() {
+			return Interrupt.this.ticksUntilDue();
+		}
 	}
 }
@@ -0,0 +1,109 @@
+package nachos.machine;
+
+/**
+ * The statistics the kernel records itself, which the machine cannot see,
+ * such as how many pages it swaps and how long threads wait to run. They are
+ * printed along with the machine's own statistics when Nachos halts.
+ *
+ * <p>
+ * The kernel gets this object from <tt>Machine.kernelStats()</tt>. It can
+ * also read the machine's statistics through it, but cannot change them.
+ */
+public final class KernelStats {
+	/**
+	 * Allocate a new kernel statistics object.
+	 *
+	 * @param stats the machine's statistics.
+	 */
+	KernelStats(Stats stats) {
+		this.stats = stats;
+	}
+
+	/**
+	 * Return the total amount of simulated time that Nachos has spent in
+	 * kernel mode.
+	 *
+	 * @return the number of kernel ticks.
+	 */
+	public long getKernelTicks() {
+		return stats.kernelTicks;
+	}
+
+	/**
+	 * Return the total amount of simulated time that Nachos has spent in user
+	 * mode.
+	 *
+	 * @return the number of user ticks.
+	 */
+	public long getUserTicks() {
+		return stats.userTicks;
+	}
+
+	/**
+	 * Return the total number of page faults that have occurred.
+	 *
+	 * @return the number of page faults.
+	 */
+	public int getNumPageFaults() {
+		return stats.numPageFaults;
+	}
+
+	/** The total number of pages read from COFF files. */
+	public int numCOFFReads = 0;
+
+	/** The total number of pages read from swap. */
+	public int numSwapReads = 0;
+
+	/** The total number of pages written to swap. */
+	public int numSwapWrites = 0;
+
+	/**
+	 * The total number of reads and writes of the swap file, each of which
+	 * may move several pages.
+	 */
+	public int numSwapFileOps = 0;
+
+	/**
+	 * The total number of pages read from swap along with a faulting page,
+	 * before they were faulted on themselves.
+	 */
+	public int numReadAheads = 0;
+
+	/** The total number of pages evicted by the page-out daemon. */
+	public int numPageOuts = 0;
+
+	/** The total number of pages evicted by page faults finding no free frame. */
+	public int numFaultEvictions = 0;
+
+	/**
+	 * The total number of pages faulted on while they were being written out,
+	 * and taken back without reading them in.
+	 */
+	public int numReclaims = 0;
+
+	/**
+	 * The total time page faults took to service, including any time spent
+	 * waiting for another fault or the page-out daemon.
+	 */
+	public long faultTicks = 0;
+
+	/** The total number of forked kernel threads that have started running. */
+	public int numThreadsStarted = 0;
+
+	/** The total number of forked kernel threads that have finished. */
+	public int numThreadsFinished = 0;
+
+	/**
+	 * The total time forked threads waited between being forked and first
+	 * running.
+	 */
+	public long responseTicks = 0;
+
+	/**
+	 * The total time finished threads took between being forked and
+	 * finishing.
+	 */
+	public long turnaroundTicks = 0;
+
+	private Stats stats;
+}
@@ -121,6 +121,15 @@ public final class Lib {
 	 * Nachos uses several debugging flags already, but you are encouraged to
 	 * add your own.
 	 * 
+	 * <p>
+	 * The message is built before this method is called, so on a hot path
+	 * wrap any message that takes work to build in a test of the flag:
+	 * 
+	 * <pre>
+	 * if (Lib.test(dbgFoo))
+	 * 	Lib.debug(dbgFoo, &quot;value = &quot; + value);
+	 * </pre>
+	 * 
 	 * @param flag the debug flag that must be set to print this message.
 	 * @param message the debug message.
 	 */
@@ -132,27 +141,36 @@ public final class Lib {
 	/**
 	 * Tests if <i>flag</i> was enabled on the command line.
 	 * 
+	 * <p>
+	 * The flags are constants once the first flag has been tested, so when
+	 * <i>flag</i> is a constant the JIT reduces this to <tt>true</tt> or
+	 * <tt>false</tt>, and a disabled trace costs nothing.
+	 * 
 	 * @param flag the debug flag to test.
 	 * 
 	 * @return <tt>true</tt> if this flag was enabled on the command line.
 	 */
 	public static boolean test(char flag) {
-		if (debugFlags == null)
-			return false;
-		else if (debugFlags[(int) '+'])
-			return true;
-		else if (flag >= 0 && flag < 0x80 && debugFlags[(int) flag])
+		if (DebugFlags.all)
 			return true;
+		else if (flag < 0x40)
+			return (DebugFlags.low & (1L << flag)) != 0;
+		else if (flag < 0x80)
+			return (DebugFlags.high & (1L << (flag - 0x40))) != 0;
 		else
 			return false;
 	}
 
 	/**
-	 * Enable all the debug flags in <i>flagsString</i>.
+	 * Enable all the debug flags in <i>flagsString</i>. Must be called before
+	 * any flag is tested.
 	 * 
 	 * @param flagsString the flags to enable.
 	 */
 	public static void enableDebugFlags(String flagsString) {
+		assertTrue(!debugFlagsTested,
+				"debug flags enabled after they were tested");
+
 		if (debugFlags == null)
 			debugFlags = new boolean[0x80];
 
@@ -167,6 +185,40 @@ public final class Lib {
 	/** Debug flags specified on the command line. */
 	private static boolean debugFlags[];
 
+	/** Set once <tt>DebugFlags</tt> has captured <tt>debugFlags</tt>. */
+	private static boolean debugFlagsTested = false;
+
+	/**
+	 * The enabled debug flags as constants. This class is initialized the
+	 * first time a flag is tested, after the command line has been read.
+	 */
+	private static class DebugFlags {
+		/** <tt>true</tt> if the + flag enabled every flag. */
+		static final boolean all;
+
+		/** Bit <i>c</i> is set if flag <i>c</i> is enabled, for c &lt; 0x40. */
+		static final long low;
+
+		/** Bit <i>c</i>-0x40 is set if flag <i>c</i> is enabled, for c &ge; 0x40. */
+		static final long high;
+
+		static {
+			long bits[] = new long[2];
+			if (debugFlags != null) {
+				for (int c = 0; c < 0x80; c++) {
+					if (debugFlags[c])
+						bits[c / 0x40] |= 1L << (c % 0x40);
+				}
+			}
+
+			all = debugFlags != null && debugFlags[(int) '+'];
+			low = bits[0];
+			high = bits[1];
+
+			debugFlagsTested = true;
+		}
+	}
+
 	/**
 	 * Read a file, verifying that the requested number of bytes is read, and
 	 * verifying that the read operation took a non-zero amount of time.
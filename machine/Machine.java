@@ -98,9 +98,33 @@ public final class Machine {
 	public static void halt() {
 		System.out.print("Machine halting!\n\n");
 		stats.print();
+		if (haltHandler != null)
+			haltHandler.run();
 		terminate();
 	}
 
+	/**
+	 * Set the handler to call when Nachos halts, after printing stats. The
+	 * kernel can use this to print statistics of its own.
+	 * 
+	 * @param haltHandler the handler to call when Nachos halts.
+	 */
+	public static void setHaltHandler(Runnable haltHandler) {
+		Machine.haltHandler = haltHandler;
+	}
+
+	/**
+	 * Return the object in which the kernel records its own statistics, such
+	 * as how long threads wait to run, to be printed along with the
+	 * machine's when Nachos halts. The machine's statistics can be read
+	 * through it, but not changed.
+	 * 
+	 * @return the kernel statistics object.
+	 */
+	public static KernelStats kernelStats() {
+		return stats.kernel;
+	}
+
 	/**
 	 * Return an array containing all command line arguments.
 	 * 
@@ -433,6 +457,8 @@ public final class Machine {
 
 	private static Stats stats = new Stats();
 
+	private static Runnable haltHandler = null;
+
 	private static int numPhysPages = -1;
 
 	private static long randomSeed = 0;
@@ -4,6 +4,17 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -46,11 +57,37 @@ public final class Processor {
 			registers[i] = 0;
 
 		mainMemory = new byte[pageSize * numPhysPages];
+		decodeCache = new Decoded[numPhysPages][];
+		numDecoded = new int[numPhysPages];
+
+		// the interpreter is the reference; the block engine must match it,
+		// and so must the blocks the jit engine compiles
+		String engine = Config.getString("Processor.engine", "interpreter");
+		Lib.assertTrue(engine.equals("interpreter") || engine.equals("block")
+				|| engine.equals("jit"), "unknown Processor.engine: " + engine);
+		usingBlocks = !engine.equals("interpreter");
+		if (usingBlocks)
+			blockCache = new Block[numPhysPages][];
+
+		hotThreshold = Config.getInteger("Processor.hotThreshold", 32);
+		jitThreshold = Config.getInteger("Processor.jitThreshold", 1000);
+		Lib.assertTrue(jitThreshold > 0,
+				"Processor.jitThreshold must be positive");
+		verifyEngine = Config.getBoolean("Processor.verifyEngine", false);
+		batchTicks = Config.getBoolean("Processor.batchTicks", true);
+
+		if (engine.equals("jit"))
+			compiler = newBlockCompiler();
 
 		if (usingTLB) {
+			tlbSize = Config.getInteger("Processor.tlbSize", tlbSize);
+			Lib.assertTrue(tlbSize > 0, "Processor.tlbSize must be positive");
+
 			translations = new TranslationEntry[tlbSize];
 			for (int i = 0; i < tlbSize; i++)
 				translations[i] = new TranslationEntry();
+
+			tlbIndex = new TLBIndex();
 		}
 		else {
 			translations = null;
@@ -91,6 +128,13 @@ public final class Processor {
 
 		Machine.autoGrader().runProcessor(privilege);
 
+		updateTickBudget();
+
+		// only the interpreter produces the processor and disassembly traces
+		if (usingBlocks && !Lib.test(dbgProcessor) && !Lib.test(dbgDisassemble)
+				&& !Lib.test(dbgFullDisassemble))
+			runBlocks();
+
 		Instruction inst = new Instruction();
 
 		while (true) {
@@ -101,8 +145,163 @@ public final class Processor {
 				e.handle();
 			}
 
-			privilege.interrupt.tick(false);
+			tick();
+		}
+	}
+
+	/**
+	 * Execute instructions one basic block at a time. Like the interpreter
+	 * loop, simulated time advances once after every instruction, including
+	 * one that causes an exception. Never returns.
+	 */
+	private void runBlocks() {
+		Block block = null;
+
+		while (true) {
+			try {
+				block = nextBlock(block);
+				block.run();
+			}
+			catch (MipsException e) {
+				block = null;
+
+				e.handle();
+
+				tick();
+			}
+		}
+	}
+
+	/**
+	 * Advance simulated time by one user tick. When batching ticks, they are
+	 * only counted until an interrupt might be due, and then passed to the
+	 * interrupt controller all at once, so every interrupt still happens on
+	 * the same tick.
+	 */
+	private void tick() {
+		if (++unaccountedTicks >= tickBudget)
+			accountTicks();
+	}
+
+	/**
+	 * Pass any ticks not yet accounted for to the interrupt controller, which
+	 * runs the handlers of any interrupts now due, and then work out how many
+	 * more instructions can run before one might be due.
+	 */
+	private void accountTicks() {
+		int count = unaccountedTicks;
+		unaccountedTicks = 0;
+
+		if (count > 0)
+			privilege.interrupt.tick(false, count);
+
+		updateTickBudget();
+	}
+
+	/**
+	 * Work out how many instructions can run before their ticks must be
+	 * accounted for. Must be called whenever a handler may have scheduled an
+	 * interrupt, let time pass, or switched to another thread.
+	 */
+	private void updateTickBudget() {
+		if (!batchTicks) {
+			tickBudget = 1;
+			return;
+		}
+
+		long ticks = Math.min(privilege.interrupt.ticksUntilDue(),
+				Integer.MAX_VALUE);
+
+		// the instruction whose tick makes an interrupt due ends the batch
+		tickBudget = (int) Math.max(1, (ticks + Stats.UserTick - 1)
+				/ Stats.UserTick);
+	}
+
+	/**
+	 * Return the block to run at the current PC. A hot <i>previous</i> block
+	 * remembers which blocks followed it, so as long as no handler has run
+	 * and no code has been stored to since, its successor is found without
+	 * translating the PC again or consulting the block cache.
+	 * 
+	 * @param previous the block that just finished, or <tt>null</tt>.
+	 * @return the block starting at the current PC.
+	 */
+	private Block nextBlock(Block previous) throws MipsException {
+		int pc = registers[regPC];
+
+		if (previous != null && previous.isHot()) {
+			Block next = previous.successor(pc);
+			if (next != null)
+				return next;
+		}
+
+		Block next = lookupBlock(translate(pc, 4, accessFetch));
+
+		if (previous != null && previous.isHot())
+			previous.chain(pc, next);
+
+		return next;
+	}
+
+	/**
+	 * Return a compiler for hot blocks, or <tt>null</tt> if this JVM cannot
+	 * define hidden classes, in which case hot blocks are only linked.
+	 * 
+	 * @return the block compiler, or <tt>null</tt>.
+	 */
+	private BlockCompiler newBlockCompiler() {
+		// compiled blocks join the nest of the class that made the lookup, so
+		// it must be made here, not in one of the nested classes
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+		// hidden classes are newer than the rest of the code, so find them by
+		// reflection
+		try {
+			Class<?> optionClass = Class
+					.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+			Object options = Array.newInstance(optionClass, 1);
+			Array.set(options, 0, optionClass.getField("NESTMATE").get(null));
+
+			Method define = MethodHandles.Lookup.class.getMethod(
+					"defineHiddenClass", byte[].class, boolean.class,
+					options.getClass());
+
+			// calling a method repeatedly by reflection makes the JVM
+			// generate an accessor class in a new class loader, which the
+			// security manager forbids, so call it through a handle instead;
+			// the options are passed as an array, not as varargs
+			return new BlockCompiler(lookup, lookup.unreflect(define)
+					.asFixedArity(), options);
+		}
+		catch (Exception e) {
+			Lib.debug(dbgProcessor,
+					"no hidden classes, so hot blocks are only linked");
+			return null;
+		}
+	}
+
+	/**
+	 * Return an up-to-date block starting at physical address <i>paddr</i>,
+	 * building a new one if none is cached or the cached one is stale.
+	 * 
+	 * @param paddr the physical address of the first instruction.
+	 * @return the block starting at that address.
+	 */
+	private Block lookupBlock(int paddr) {
+		Block[] page = blockCache[paddr / pageSize];
+		if (page == null) {
+			page = new Block[pageSize / 4];
+			blockCache[paddr / pageSize] = page;
+		}
+
+		int index = (paddr % pageSize) / 4;
+		Block block = page[index];
+		if (block == null || !block.isCurrent()) {
+			block = new Block(paddr);
+			page[index] = block;
 		}
+
+		return block;
 	}
 
 	/**
@@ -175,6 +374,7 @@ public final class Processor {
 		Lib.assertTrue(!usingTLB);
 
 		this.translations = pageTable;
+		flushTranslations();
 	}
 
 	/**
@@ -215,7 +415,10 @@ public final class Processor {
 		Lib.assertTrue(usingTLB);
 		Lib.assertTrue(number >= 0 && number < tlbSize);
 
+		tlbIndex.remove(number);
 		translations[number] = new TranslationEntry(entry);
+		tlbIndex.add(number);
+		flushTranslations();
 	}
 
 	/**
@@ -278,6 +481,83 @@ public final class Processor {
 		delayedLoad(0, 0, 0);
 	}
 
+	/**
+	 * Return the predecoded form of the instruction word <i>value</i> stored
+	 * at physical address <i>paddr</i>, decoding it if the cache does not
+	 * already hold that exact word.
+	 * 
+	 * <p>
+	 * Because every entry remembers the word it was decoded from, the cache
+	 * never needs to be flushed: if the kernel loads a new page into the
+	 * frame, or a user program overwrites its own code, the stale entry simply
+	 * fails to match and is replaced.
+	 * 
+	 * @param paddr the word-aligned physical address the instruction was
+	 * fetched from.
+	 * @param value the instruction word at that address.
+	 * @return the predecoded instruction.
+	 */
+	private Decoded predecode(int paddr, int value) {
+		Decoded[] page = decodeCache[paddr / pageSize];
+		if (page == null) {
+			page = new Decoded[pageSize / 4];
+			decodeCache[paddr / pageSize] = page;
+		}
+
+		int index = (paddr % pageSize) / 4;
+		Decoded info = page[index];
+		if (info == null || info.value != value) {
+			if (info == null)
+				numDecoded[paddr / pageSize]++;
+			info = new Decoded(value);
+			page[index] = info;
+		}
+
+		return info;
+	}
+
+	/**
+	 * Called before a store to physical address <i>paddr</i>. If the word
+	 * stored to has been decoded, a block may hold it, so advance
+	 * <tt>epoch</tt> to make blocks recheck their words, unless the word had
+	 * already changed since it was decoded, in which case the last
+	 * <tt>epoch</tt> change did that.
+	 * 
+	 * @param paddr the physical address stored to.
+	 * @return the word's predecoded form, or <tt>null</tt> if it has none.
+	 */
+	private Decoded beforeStore(int paddr) {
+		Decoded[] page = decodeCache[paddr / pageSize];
+		if (page == null)
+			return null;
+
+		Decoded info = page[(paddr % pageSize) / 4];
+		if (info != null && Lib.bytesToInt(mainMemory, paddr & ~3) == info.value)
+			epoch++;
+
+		return info;
+	}
+
+	/**
+	 * Called after a store to physical address <i>paddr</i>, with the result
+	 * of <tt>beforeStore()</tt>. If the word no longer holds the instruction
+	 * it was decoded from, forget the decoded form, so that later stores to
+	 * the word, such as when the frame is reused for data, leave
+	 * <tt>epoch</tt> alone. A page's array is dropped once it is empty.
+	 * 
+	 * @param paddr the physical address stored to.
+	 * @param info the word's predecoded form.
+	 */
+	private void afterStore(int paddr, Decoded info) {
+		if (Lib.bytesToInt(mainMemory, paddr & ~3) == info.value)
+			return;
+
+		int ppn = paddr / pageSize;
+		decodeCache[ppn][(paddr % pageSize) / 4] = null;
+		if (--numDecoded[ppn] == 0)
+			decodeCache[ppn] = null;
+	}
+
 	/**
 	 * Translate a virtual address into a physical address, using either a page
 	 * table or a TLB. Check for alignment, make sure the virtual page is valid,
@@ -299,7 +579,7 @@ public final class Processor {
 		// check alignment
 		if ((vaddr & (size - 1)) != 0) {
 			Lib.debug(dbgProcessor, "\t\talignment error");
-			throw new MipsException(exceptionAddressError, vaddr);
+			throw trap(exceptionAddressError, vaddr);
 		}
 
 		// calculate virtual page number and offset from the virtual address
@@ -314,37 +594,35 @@ public final class Processor {
 					|| translations[vpn] == null || !translations[vpn].valid) {
 				privilege.stats.numPageFaults++;
 				Lib.debug(dbgProcessor, "\t\tpage fault");
-				throw new MipsException(exceptionPageFault, vaddr);
+				throw trap(exceptionPageFault, vaddr);
 			}
 
 			entry = translations[vpn];
 		}
-		// else, look through all TLB entries for matching vpn
+		// else, find the first valid TLB entry with a matching vpn
 		else {
-			for (int i = 0; i < tlbSize; i++) {
-				if (translations[i].valid && translations[i].vpn == vpn) {
-					entry = translations[i];
-					break;
-				}
-			}
+			int number = tlbIndex.find(vpn);
+			if (number != -1)
+				entry = translations[number];
+
 			if (entry == null) {
 				privilege.stats.numTLBMisses++;
 				Lib.debug(dbgProcessor, "\t\tTLB miss");
-				throw new MipsException(exceptionTLBMiss, vaddr);
+				throw trap(exceptionTLBMiss, vaddr);
 			}
 		}
 
 		// check if trying to write a read-only page
 		if (entry.readOnly && writing) {
 			Lib.debug(dbgProcessor, "\t\tread-only exception");
-			throw new MipsException(exceptionReadOnly, vaddr);
+			throw trap(exceptionReadOnly, vaddr);
 		}
 
 		// check if physical page number is out of range
 		int ppn = entry.ppn;
 		if (ppn < 0 || ppn >= numPhysPages) {
 			Lib.debug(dbgProcessor, "\t\tbad ppn");
-			throw new MipsException(exceptionBusError, vaddr);
+			throw trap(exceptionBusError, vaddr);
 		}
 
 		// set used and dirty bits as appropriate
@@ -359,6 +637,46 @@ public final class Processor {
 		return paddr;
 	}
 
+	/**
+	 * Translate a virtual address into a physical address, reusing the last
+	 * translation made for the same kind of access if it was for the same
+	 * page. A cached translation already passed every check and already set
+	 * the entry's used bit (and dirty bit, for stores), and it is flushed
+	 * before any kernel code runs, so the kernel can neither change the entry
+	 * nor clear its bits while the translation is cached.
+	 * 
+	 * @param vaddr the virtual address to translate.
+	 * @param size the size of the memory reference (must be 1, 2, or 4).
+	 * @param access <tt>accessFetch</tt>, <tt>accessLoad</tt>, or
+	 * <tt>accessStore</tt>.
+	 * @return the physical address.
+	 * @exception MipsException if a translation error occurred.
+	 */
+	private int translate(int vaddr, int size, int access)
+			throws MipsException {
+		int vpn = pageFromAddress(vaddr);
+
+		if (vpn == cachedVPN[access] && (vaddr & (size - 1)) == 0
+				&& !Lib.test(dbgProcessor))
+			return cachedBase[access] + offsetFromAddress(vaddr);
+
+		int paddr = translate(vaddr, size, access == accessStore);
+
+		cachedVPN[access] = vpn;
+		cachedBase[access] = paddr - offsetFromAddress(vaddr);
+
+		return paddr;
+	}
+
+	/**
+	 * Forget the cached translations, because the kernel is about to run or
+	 * the translations have changed.
+	 */
+	private void flushTranslations() {
+		for (int i = 0; i < cachedVPN.length; i++)
+			cachedVPN[i] = -1;
+	}
+
 	/**
 	 * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
 	 * and return the result.
@@ -375,8 +693,8 @@ public final class Processor {
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				size);
+		int value = Lib.bytesToInt(mainMemory,
+				translate(vaddr, size, accessLoad), size);
 
 		if (Lib.test(dbgProcessor))
 			System.out.println("\t\tvalue read=0x"
@@ -402,7 +720,23 @@ public final class Processor {
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size, value);
+		int paddr = translate(vaddr, size, accessStore);
+
+		// stores over decoded instructions may modify a block
+		Decoded info = beforeStore(paddr);
+
+		int replaced = 0;
+		if (storeLog != null)
+			replaced = Lib.bytesToInt(mainMemory, paddr, size);
+
+		Lib.bytesFromInt(mainMemory, paddr, size, value);
+
+		if (storeLog != null)
+			storeLog.add(new int[] { paddr, size, replaced,
+					Lib.bytesToInt(mainMemory, paddr, size) });
+
+		if (info != null)
+			afterStore(paddr, info);
 	}
 
 	/**
@@ -457,6 +791,48 @@ public final class Processor {
 		registers[regNextPC] = nextPC;
 	}
 
+	/**
+	 * Complete an instruction that does not write a general register: finish
+	 * the delayed load in progress and advance the PC.
+	 */
+	private void retire() {
+		finishLoad();
+		advancePC(registers[regNextPC] + 4);
+	}
+
+	/**
+	 * Complete an instruction that writes a general register. Any delayed load
+	 * in progress is finished first, so the new value wins if both target the
+	 * same register.
+	 * 
+	 * @param dstReg the register to write, ignored if it is register 0.
+	 * @param value the value to write.
+	 */
+	private void retire(int dstReg, int value) {
+		finishLoad();
+		if (dstReg != 0)
+			registers[dstReg] = value;
+		advancePC(registers[regNextPC] + 4);
+	}
+
+	/**
+	 * Complete a branch or jump.
+	 * 
+	 * @param taken <tt>true</tt> if control transfers to <i>target</i> after
+	 * the delay slot.
+	 * @param target the branch target.
+	 * @param linkReg the register to receive the return address, or 0 if the
+	 * instruction does not link.
+	 */
+	private void retireBranch(boolean taken, int target, int linkReg) {
+		int nextPC = registers[regNextPC] + 4;
+
+		finishLoad();
+		if (linkReg != 0)
+			registers[linkReg] = nextPC;
+		advancePC(taken ? target : nextPC);
+	}
+
 	/** Caused by a syscall instruction. */
 	public static final int exceptionSyscall = 0;
 
@@ -549,9 +925,24 @@ public final class Processor {
 	/** <tt>true</tt> if using a software-managed TLB. */
 	private boolean usingTLB;
 
-	/** Number of TLB entries. */
+	/** Number of TLB entries, set by <tt>Processor.tlbSize</tt>. */
 	private int tlbSize = 4;
 
+	/** Finds TLB entries by vpn, if using a TLB. */
+	private TLBIndex tlbIndex;
+
+	/** Kinds of memory access, each with its own cached translation. */
+	private static final int accessFetch = 0, accessLoad = 1, accessStore = 2;
+
+	/**
+	 * The virtual page of the last translation for each kind of access, or -1
+	 * if there is none.
+	 */
+	private int[] cachedVPN = new int[] { -1, -1, -1 };
+
+	/** The physical address of the page in <tt>cachedVPN</tt>. */
+	private int[] cachedBase = new int[3];
+
 	/**
 	 * Either an associative or direct-mapped set of translation entries,
 	 * depending on whether there is a TLB.
@@ -570,6 +961,83 @@ public final class Processor {
 	/** Main memory for user programs. */
 	private byte[] mainMemory;
 
+	/**
+	 * Predecoded instructions, indexed by physical page number and then by
+	 * word offset within the page. A page's array is only allocated once an
+	 * instruction has been fetched from it, and is dropped once stores have
+	 * overwritten every instruction in it.
+	 */
+	private Decoded[][] decodeCache;
+
+	/** The number of predecoded instructions in each page's array. */
+	private int[] numDecoded;
+
+	/** <tt>true</tt> if executing basic blocks instead of interpreting. */
+	private boolean usingBlocks;
+
+	/**
+	 * Cached basic blocks, indexed like <tt>decodeCache</tt> by the physical
+	 * address of their first instruction.
+	 */
+	private Block[][] blockCache;
+
+	/**
+	 * The number of times a block must run before it is linked to the blocks
+	 * that follow it.
+	 */
+	private int hotThreshold;
+
+	/**
+	 * Compiles hot blocks to JVM bytecode, or <tt>null</tt> if blocks are
+	 * not compiled.
+	 */
+	private BlockCompiler compiler = null;
+
+	/**
+	 * The number of times a block must run from its first instruction to its
+	 * last before it is compiled.
+	 */
+	private int jitThreshold;
+
+	/**
+	 * <tt>true</tt> if every instruction the block engine executes should be
+	 * checked against the interpreter.
+	 */
+	private boolean verifyEngine;
+
+	/**
+	 * <tt>true</tt> if user ticks should be passed to the interrupt
+	 * controller in batches, instead of after every instruction.
+	 */
+	private boolean batchTicks;
+
+	/** User ticks that have passed but not yet been accounted for. */
+	private int unaccountedTicks = 0;
+
+	/** Account for ticks once this many have passed. */
+	private int tickBudget = 1;
+
+	/** The interpreter used to check the block engine. */
+	private Instruction verifier = new Instruction();
+
+	/**
+	 * While an instruction is checked in the differential test mode, the
+	 * stores it made, each as the physical address, the size, the bytes it
+	 * replaced, and the bytes it wrote. <tt>null</tt> at all other times.
+	 */
+	private ArrayList<int[]> storeLog = null;
+
+	/** Checks instructions in the differential test mode. */
+	private Check check = new Check();
+
+	/**
+	 * Advanced whenever anything but straight-line user code may have run:
+	 * before every exception or interrupt handler, and on every store over a
+	 * decoded instruction. A block only rechecks its instruction words
+	 * against memory when this has changed.
+	 */
+	private long epoch = 0;
+
 	/** The kernel exception handler, called on every user exception. */
 	private Runnable exceptionHandler = null;
 
@@ -582,21 +1050,196 @@ public final class Processor {
 	private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 		public void flushPipe() {
 			finishLoad();
+			flushTranslations();
+
+			// an interrupt handler is about to run
+			epoch++;
 		}
 	}
 
-	private class MipsException extends Exception {
-		public MipsException(int cause) {
-			Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
+	/**
+	 * A hash table from virtual page number to the lowest numbered valid TLB
+	 * entry for that page, which is the entry a linear search of the TLB
+	 * would find. Kept up to date by <tt>writeTLBEntry()</tt>, so translation
+	 * takes constant time however large the TLB is.
+	 * 
+	 * <p>
+	 * The kernel should never have two valid entries for one page, but if it
+	 * does, only the lowest numbered one is indexed, and the others are
+	 * searched for when it is replaced.
+	 */
+	private class TLBIndex {
+		TLBIndex() {
+			int capacity = Integer.highestOneBit(tlbSize) * 4;
 
-			this.cause = cause;
+			vpns = new int[capacity];
+			numbers = new int[capacity];
+			for (int i = 0; i < capacity; i++)
+				numbers[i] = -1;
+
+			mask = capacity - 1;
+			shift = 32 - Integer.numberOfTrailingZeros(capacity);
+		}
+
+		/**
+		 * Return the number of the TLB entry that maps <i>vpn</i>.
+		 * 
+		 * @param vpn the virtual page number.
+		 * @return the entry number, or -1 if no valid entry maps it.
+		 */
+		int find(int vpn) {
+			for (int i = hash(vpn);; i = (i + 1) & mask) {
+				if (numbers[i] == -1 || vpns[i] == vpn)
+					return numbers[i];
+			}
+		}
+
+		/**
+		 * Index TLB entry <i>number</i>, which was just written.
+		 * 
+		 * @param number the entry number.
+		 */
+		void add(int number) {
+			TranslationEntry entry = translations[number];
+			if (!entry.valid)
+				return;
+
+			numValid++;
+
+			int i = slot(entry.vpn);
+			if (numbers[i] == -1) {
+				vpns[i] = entry.vpn;
+				numbers[i] = number;
+				numIndexed++;
+			}
+			else if (number < numbers[i]) {
+				numbers[i] = number;
+			}
+		}
+
+		/**
+		 * Stop indexing TLB entry <i>number</i>, which is about to be
+		 * overwritten.
+		 * 
+		 * @param number the entry number.
+		 */
+		void remove(int number) {
+			TranslationEntry entry = translations[number];
+			if (!entry.valid)
+				return;
+
+			boolean duplicates = numValid > numIndexed;
+			numValid--;
+
+			int i = slot(entry.vpn);
+			if (numbers[i] != number)
+				return;
+
+			// another valid entry for the same page takes over, if one exists
+			if (duplicates) {
+				for (int j = 0; j < tlbSize; j++) {
+					if (j != number && translations[j].valid
+							&& translations[j].vpn == entry.vpn) {
+						numbers[i] = j;
+						return;
+					}
+				}
+			}
+
+			delete(i);
+			numIndexed--;
+		}
+
+		private int hash(int vpn) {
+			return (vpn * 0x9E3779B9) >>> shift;
+		}
+
+		/** Return the slot holding <i>vpn</i>, or the empty slot for it. */
+		private int slot(int vpn) {
+			int i = hash(vpn);
+			while (numbers[i] != -1 && vpns[i] != vpn)
+				i = (i + 1) & mask;
+
+			return i;
+		}
+
+		/** Empty slot <i>i</i>, moving back any entries probed past it. */
+		private void delete(int i) {
+			numbers[i] = -1;
+
+			for (int j = (i + 1) & mask; numbers[j] != -1; j = (j + 1) & mask) {
+				int home = hash(vpns[j]);
+
+				// leave entries whose home lies cyclically in (i, j]
+				if (i <= j ? (i < home && home <= j) : (i < home || home <= j))
+					continue;
+
+				vpns[i] = vpns[j];
+				numbers[i] = numbers[j];
+				numbers[j] = -1;
+				i = j;
+			}
+		}
+
+		private int[] vpns;
+
+		private int[] numbers;
+
+		private int mask, shift;
+
+		/** Number of valid TLB entries. */
+		private int numValid = 0;
+
+		/** Number of distinct pages mapped by valid TLB entries. */
+		private int numIndexed = 0;
+	}
+
+	/**
+	 * Return the processor's exception, set up to report <i>cause</i>.
+	 * 
+	 * @param cause the exception cause.
+	 * @return the exception to throw.
+	 */
+	private MipsException trap(int cause) {
+		return trap.set(cause, false, 0);
+	}
+
+	/**
+	 * Return the processor's exception, set up to report <i>cause</i> at the
+	 * virtual address <i>badVAddr</i>.
+	 * 
+	 * @param cause the exception cause.
+	 * @param badVAddr the virtual address that caused the exception.
+	 * @return the exception to throw.
+	 */
+	private MipsException trap(int cause, int badVAddr) {
+		return trap.set(cause, true, badVAddr);
+	}
+
+	/**
+	 * The only <tt>MipsException</tt>. Syscalls, page faults and TLB misses
+	 * are routine, so rather than allocating an exception and filling in its
+	 * stack trace for each one, this one is refilled and thrown every time.
+	 * That is safe because an exception is always handled before the next
+	 * instruction runs, and <tt>handle()</tt> reads its fields before calling
+	 * the kernel.
+	 */
+	private MipsException trap = new MipsException();
+
+	private class MipsException extends Exception {
+		public MipsException() {
+			// no message, no cause, no suppressed exceptions, no stack trace
+			super(null, null, false, false);
 		}
 
-		public MipsException(int cause, int badVAddr) {
-			this(cause);
+		public MipsException set(int cause, boolean hasBadVAddr, int badVAddr) {
+			Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
 
-			hasBadVAddr = true;
+			this.cause = cause;
+			this.hasBadVAddr = hasBadVAddr;
 			this.badVAddr = badVAddr;
+
+			return this;
 		}
 
 		public void handle() {
@@ -609,14 +1252,20 @@ public final class Processor {
 				System.out.println("exception: " + exceptionNames[cause]);
 
 			finishLoad();
+			flushTranslations();
+			epoch++;
+
+			// the handler sees the time at which the exception happened
+			accountTicks();
 
 			Lib.assertTrue(exceptionHandler != null);
 
 			// autograder might not want kernel to know about this exception
-			if (!Machine.autoGrader().exceptionHandler(privilege))
-				return;
+			if (Machine.autoGrader().exceptionHandler(privilege))
+				exceptionHandler.run();
 
-			exceptionHandler.run();
+			// the handler may have scheduled an interrupt or switched threads
+			updateTickBudget();
 		}
 
 		private boolean hasBadVAddr = false;
@@ -643,63 +1292,44 @@ public final class Processor {
 				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 						+ "\t");
 
-			value = readMem(registers[regPC], 4);
+			if (Lib.test(dbgProcessor))
+				System.out.println("\treadMem vaddr=0x"
+						+ Lib.toHexString(registers[regPC]) + ", size=4");
+
+			// translate separately so the physical address can key the cache
+			paddr = translate(registers[regPC], 4, accessFetch);
+			value = Lib.bytesToInt(mainMemory, paddr, 4);
+
+			if (Lib.test(dbgProcessor))
+				System.out.println("\t\tvalue read=0x"
+						+ Lib.toHexString(value, 8));
 		}
 
 		private void decode() {
-			op = Lib.extract(value, 26, 6);
-			rs = Lib.extract(value, 21, 5);
-			rt = Lib.extract(value, 16, 5);
-			rd = Lib.extract(value, 11, 5);
-			sh = Lib.extract(value, 6, 5);
-			func = Lib.extract(value, 0, 6);
-			target = Lib.extract(value, 0, 26);
-			imm = Lib.extend(value, 0, 16);
+			Decoded info = predecode(paddr, value);
 
-			Mips info;
-			switch (op) {
-			case 0:
-				info = Mips.specialtable[func];
-				break;
-			case 1:
-				info = Mips.regimmtable[rt];
-				break;
-			default:
-				info = Mips.optable[op];
-				break;
-			}
+			op = info.op;
+			rs = info.rs;
+			rt = info.rt;
+			rd = info.rd;
+			sh = info.sh;
+			func = info.func;
+			target = info.target;
+			imm = info.imm;
 
 			operation = info.operation;
 			name = info.name;
 			format = info.format;
 			flags = info.flags;
+			size = info.size;
+			dstReg = info.dstReg;
 
 			mask = 0xFFFFFFFF;
 			branch = true;
 
-			// get memory access size
-			if (test(Mips.SIZEB))
-				size = 1;
-			else if (test(Mips.SIZEH))
-				size = 2;
-			else if (test(Mips.SIZEW))
-				size = 4;
-			else
-				size = 0;
-
 			// get nextPC
 			nextPC = registers[regNextPC] + 4;
 
-			// get dstReg
-			if (test(Mips.DSTRA))
-				dstReg = regRA;
-			else if (format == Mips.IFMT)
-				dstReg = rt;
-			else if (format == Mips.RFMT)
-				dstReg = rd;
-			else
-				dstReg = -1;
-
 			// get jtarget
 			if (format == Mips.RFMT)
 				jtarget = registers[rs];
@@ -710,11 +1340,6 @@ public final class Processor {
 			else
 				jtarget = -1;
 
-			// get imm
-			if (test(Mips.UNSIGNED)) {
-				imm &= 0xFFFF;
-			}
-
 			// get addr
 			addr = registers[rs] + imm;
 
@@ -886,7 +1511,7 @@ public final class Processor {
 						throw new ArithmeticException();
 				}
 				catch (ArithmeticException e) {
-					throw new MipsException(exceptionOverflow);
+					throw trap(exceptionOverflow);
 				}
 				break;
 
@@ -956,7 +1581,7 @@ public final class Processor {
 				break;
 
 			case Mips.SYSCALL:
-				throw new MipsException(exceptionSyscall);
+				throw trap(exceptionSyscall);
 
 			case Mips.LOAD:
 				value = readMem(addr, size);
@@ -1027,7 +1652,7 @@ public final class Processor {
 				System.err.println("Warning: encountered unimplemented inst");
 
 			case Mips.INVALID:
-				throw new MipsException(exceptionIllegalInstruction);
+				throw trap(exceptionIllegalInstruction);
 
 			default:
 				Lib.assertNotReached();
@@ -1037,7 +1662,7 @@ public final class Processor {
 		private void writeBack() throws MipsException {
 			// if instruction is signed, but carry bit !+ sign bit, throw
 			if (test(Mips.OVERFLOW) && Lib.test(dst, 31) != Lib.test(dst, 32))
-				throw new MipsException(exceptionOverflow);
+				throw trap(exceptionOverflow);
 
 			if (test(Mips.DELAYEDLOAD))
 				delayedLoad(dstReg, (int) dst, mask);
@@ -1070,7 +1695,7 @@ public final class Processor {
 		}
 
 		// state used to execute a single instruction
-		int value, op, rs, rt, rd, sh, func, target, imm;
+		int paddr, value, op, rs, rt, rd, sh, func, target, imm;
 
 		int operation, format, flags;
 
@@ -1087,6 +1712,1691 @@ public final class Processor {
 		boolean branch;
 	}
 
+	/**
+	 * A run of straight-line instructions starting at some physical address
+	 * and ending with the first branch, jump, syscall or illegal instruction,
+	 * or at the end of the page. Every instruction is prebuilt into an
+	 * <tt>Op</tt> specialized for its operation, so executing a block needs no
+	 * fetch, translation, or decode per instruction.
+	 * 
+	 * <p>
+	 * A block never spans pages, and it is abandoned as soon as a handler
+	 * runs, so the translation done when it is entered holds for all of it.
+	 */
+	private class Block {
+		Block(int paddr) {
+			this.paddr = paddr;
+
+			int pageEnd = (paddr / pageSize + 1) * pageSize;
+
+			ArrayList<Decoded> infos = new ArrayList<Decoded>();
+			for (int addr = paddr; addr < pageEnd; addr += 4) {
+				Decoded info = predecode(addr, Lib.bytesToInt(mainMemory, addr));
+				infos.add(info);
+
+				if (info.test(Mips.BRANCH) || info.operation == Mips.SYSCALL
+						|| info.operation == Mips.INVALID
+						|| info.operation == Mips.UNIMPL)
+					break;
+			}
+
+			words = new int[infos.size()];
+			ops = new Op[infos.size()];
+			for (int i = 0; i < ops.length; i++) {
+				words[i] = infos.get(i).value;
+				ops[i] = newOp(infos.get(i));
+			}
+
+			checkedEpoch = epoch;
+		}
+
+		/**
+		 * Test whether memory still holds the instructions this block was
+		 * built from.
+		 * 
+		 * @return <tt>true</tt> if this block can still be run.
+		 */
+		boolean isCurrent() {
+			if (checkedEpoch == epoch)
+				return true;
+
+			for (int i = 0; i < words.length; i++) {
+				if (Lib.bytesToInt(mainMemory, paddr + i * 4) != words[i])
+					return false;
+			}
+
+			// the kernel may have loaded this code back into a frame whose
+			// decoded words stores had forgotten; stores must see them again
+			for (int i = 0; i < words.length; i++)
+				predecode(paddr + i * 4, words[i]);
+
+			checkedEpoch = epoch;
+			return true;
+		}
+
+		/**
+		 * Run this block from its first instruction, advancing simulated time
+		 * after each one. Returns early if a handler ran, since the kernel may
+		 * have changed the PC, the translations, or this block's code.
+		 */
+		void run() throws MipsException {
+			long startEpoch = epoch;
+
+			if (runs < hotThreshold)
+				runs++;
+
+			// a delay slot is followed by the branch target, not the next word
+			int length = ops.length;
+			if (registers[regNextPC] != registers[regPC] + 4)
+				length = 1;
+
+			// compiled code always runs the whole block, so only those runs
+			// count toward compiling it
+			if (compiler != null && length == ops.length) {
+				if (compiled == null && ++wholeRuns >= jitThreshold)
+					compiler.compile(this);
+
+				if (compiled != null) {
+					compiled.run(Processor.this, ops, startEpoch);
+					return;
+				}
+			}
+
+			for (int i = 0; i < length; i++) {
+				if (verifyEngine)
+					verify(ops[i]);
+				else
+					ops[i].execute();
+
+				tick();
+
+				if (epoch != startEpoch)
+					return;
+			}
+		}
+
+		/**
+		 * Test whether this block has run often enough to be worth linking
+		 * to its successors.
+		 * 
+		 * @return <tt>true</tt> if this block is hot.
+		 */
+		boolean isHot() {
+			return runs >= hotThreshold;
+		}
+
+		/**
+		 * Return the block previously linked to virtual address <i>pc</i>,
+		 * if the link was made since the last handler or code store.
+		 * 
+		 * @param pc the virtual address of the next instruction.
+		 * @return the linked block, or <tt>null</tt>.
+		 */
+		Block successor(int pc) {
+			for (int i = 0; i < 2; i++) {
+				if (linkEpoch[i] == epoch && linkPC[i] == pc)
+					return links[i];
+			}
+
+			return null;
+		}
+
+		/**
+		 * Link <i>next</i> as the block that runs when this one leaves the PC
+		 * at <i>pc</i>. Two links are kept, enough for both sides of the
+		 * branch that ends this block.
+		 * 
+		 * @param pc the virtual address of the next instruction.
+		 * @param next the block starting at that address.
+		 */
+		void chain(int pc, Block next) {
+			int i = (linkEpoch[0] == epoch) ? 1 : 0;
+
+			linkPC[i] = pc;
+			links[i] = next;
+			linkEpoch[i] = epoch;
+		}
+
+		private int paddr;
+
+		private int[] words;
+
+		private Op[] ops;
+
+		private long checkedEpoch;
+
+		private int runs = 0;
+
+		private int wholeRuns = 0;
+
+		private Compiled compiled = null;
+
+		private int[] linkPC = new int[2];
+
+		private Block[] links = new Block[2];
+
+		private long[] linkEpoch = new long[] { -1, -1 };
+	}
+
+	/**
+	 * A block compiled to JVM bytecode by the <tt>BlockCompiler</tt>.
+	 */
+	private interface Compiled {
+		/**
+		 * Run the block from its first instruction. Must only be called when
+		 * the next PC follows the PC, since it always runs the whole block.
+		 * 
+		 * @param processor the processor running the block.
+		 * @param ops the block's prebuilt instructions.
+		 * @param startEpoch the value of <tt>epoch</tt> when the block was
+		 * entered.
+		 */
+		void run(Processor processor, Op[] ops, long startEpoch)
+				throws MipsException;
+	}
+
+	/**
+	 * Compiles a hot block into the <tt>run()</tt> method of a hidden class,
+	 * so the JVM can optimize the block as a whole, instead of one virtual
+	 * call per instruction. Arithmetic, logical, and shift instructions, and
+	 * the moves to and from <tt>hi</tt> and <tt>lo</tt>, are inlined as
+	 * bytecode on the registers. Every other instruction calls its prebuilt
+	 * <tt>Op</tt>. Time advances after every instruction, and the block
+	 * returns early when a handler has run, just as in <tt>Block.run()</tt>.
+	 * 
+	 * <p>
+	 * Each hidden class is a nestmate of this class, so its bytecode can use
+	 * the registers and private methods directly. In the differential test
+	 * mode, every instruction is still checked against the interpreter,
+	 * inlined ones included.
+	 */
+	private class BlockCompiler {
+		/**
+		 * Allocate a new block compiler.
+		 * 
+		 * @param lookup a lookup in this class, with full privilege.
+		 * @param defineHiddenClass a handle on
+		 * <tt>MethodHandles.Lookup.defineHiddenClass()</tt>.
+		 * @param options the options to define each class with.
+		 */
+		BlockCompiler(MethodHandles.Lookup lookup,
+				MethodHandle defineHiddenClass, Object options) {
+			this.lookup = lookup;
+			this.defineHiddenClass = defineHiddenClass;
+			this.options = options;
+		}
+
+		/**
+		 * Compile <i>block</i>, which runs the compiled code from then on.
+		 * 
+		 * @param block the block to compile.
+		 */
+		void compile(final Block block) {
+			final byte[] bytes = generate(block);
+
+			// defining a class needs the protection domain of this class
+			privilege.doPrivileged(new Runnable() {
+				public void run() {
+					try {
+						MethodHandles.Lookup hidden;
+						hidden = (MethodHandles.Lookup) defineHiddenClass.invoke(
+								lookup, bytes, true, options);
+						block.compiled = (Compiled) hidden.findConstructor(
+								hidden.lookupClass(),
+								MethodType.methodType(void.class)).invoke();
+					}
+					catch (Throwable e) {
+						Lib.assertNotReached("could not compile the block at 0x"
+								+ Lib.toHexString(block.paddr) + ": " + e);
+					}
+				}
+			});
+		}
+
+		/**
+		 * Return the class file of a compiled <i>block</i>.
+		 * 
+		 * @param block the block to compile.
+		 * @return the class file.
+		 */
+		private byte[] generate(Block block) {
+			ClassWriter w = new ClassWriter();
+
+			// the registers array is never replaced, so keep it in a local
+			w.op(ClassWriter.ALOAD_1);
+			w.op2(ClassWriter.GETFIELD, w.field(processorClass, "registers",
+					"[I"));
+			w.op(ClassWriter.ASTORE, registersLocal);
+
+			// nothing is known about the pending load on entry
+			boolean loadPending = true;
+
+			for (int i = 0; i < block.ops.length; i++) {
+				Decoded info = new Decoded(block.words[i]);
+
+				if (!canInline(info)) {
+					if (verifyEngine) {
+						w.op(ClassWriter.ALOAD_1);
+						w.op(ClassWriter.ALOAD_2);
+						w.pushInt(i);
+						w.op(ClassWriter.AALOAD);
+						w.op2(ClassWriter.INVOKEVIRTUAL, w.method(processorClass,
+								"verify", "(L" + opClass + ";)V"));
+					}
+					else {
+						w.op(ClassWriter.ALOAD_2);
+						w.pushInt(i);
+						w.op(ClassWriter.AALOAD);
+						w.op2(ClassWriter.INVOKEVIRTUAL, w.method(opClass,
+								"execute", "()V"));
+					}
+
+					// every other operation finishes the pending load
+					loadPending = info.test(Mips.DELAYEDLOAD);
+				}
+				else if (verifyEngine) {
+					w.op(ClassWriter.ALOAD_1);
+					w.op2(ClassWriter.GETFIELD, w.field(processorClass,
+							"check", "L" + checkClass + ";"));
+					w.op(ClassWriter.DUP);
+					w.op2(ClassWriter.INVOKEVIRTUAL, w.method(checkClass,
+							"begin", "()V"));
+
+					inline(w, info, loadPending);
+
+					w.op(ClassWriter.ACONST_NULL);
+					w.op2(ClassWriter.INVOKEVIRTUAL, w.method(checkClass,
+							"end", "(L" + exceptionClass + ";)V"));
+					loadPending = false;
+				}
+				else {
+					inline(w, info, loadPending);
+					loadPending = false;
+				}
+
+				w.op(ClassWriter.ALOAD_1);
+				w.op2(ClassWriter.INVOKEVIRTUAL, w.method(processorClass,
+						"tick", "()V"));
+
+				if (i == block.ops.length - 1)
+					break;
+
+				// return if a handler ran
+				w.op(ClassWriter.ALOAD_1);
+				w.op2(ClassWriter.GETFIELD, w.field(processorClass, "epoch",
+						"J"));
+				w.op(ClassWriter.LLOAD_3);
+				w.op(ClassWriter.LCMP);
+				w.op2(ClassWriter.IFEQ, 4);
+				w.op(ClassWriter.RETURN);
+				w.frame();
+			}
+
+			w.op(ClassWriter.RETURN);
+
+			return w.toByteArray(processorClass + "$CompiledBlock",
+					compiledClass, "(L" + processorClass + ";[L" + opClass
+							+ ";J)V", maxStack, maxLocals);
+		}
+
+		/**
+		 * Test whether the instruction <i>info</i> is inlined as bytecode.
+		 * Inlined instructions can never raise an exception, and never touch
+		 * memory.
+		 * 
+		 * @param info the instruction.
+		 * @return <tt>true</tt> if the instruction can be inlined.
+		 */
+		private boolean canInline(Decoded info) {
+			switch (info.operation) {
+			case Mips.ADD:
+			case Mips.SUB:
+				return !info.test(Mips.OVERFLOW);
+
+			case Mips.MULT:
+			case Mips.SLL:
+			case Mips.SRA:
+			case Mips.SRL:
+			case Mips.SLT:
+			case Mips.AND:
+			case Mips.OR:
+			case Mips.XOR:
+			case Mips.NOR:
+			case Mips.LUI:
+			case Mips.MFLO:
+			case Mips.MFHI:
+			case Mips.MTLO:
+			case Mips.MTHI:
+				return true;
+
+			default:
+				return false;
+			}
+		}
+
+		/**
+		 * Emit bytecode with the same effect as the <tt>Op</tt>
+		 * <tt>newOp()</tt> builds for <i>info</i>.
+		 * 
+		 * @param w the class writer.
+		 * @param info an instruction that can be inlined.
+		 * @param loadPending <tt>false</tt> if no delayed load can be in
+		 * progress, so there is none to finish.
+		 */
+		private void inline(ClassWriter w, Decoded info, boolean loadPending) {
+			int rs = info.rs, rt = info.rt, sh = info.sh & 0x1F;
+			int imm = info.imm, dstReg = info.dstReg;
+			boolean srcImm = info.test(Mips.SRC2IMM);
+			boolean srcShift = info.test(Mips.SRC1SH);
+			boolean unsigned = info.test(Mips.UNSIGNED);
+
+			switch (info.operation) {
+			case Mips.MULT:
+				loadRegister(w, rs, unsigned);
+				loadRegister(w, rt, unsigned);
+				w.op(ClassWriter.LMUL);
+				w.op(ClassWriter.LSTORE, productLocal);
+
+				w.op(ClassWriter.ALOAD, registersLocal);
+				w.pushInt(regLo);
+				w.op(ClassWriter.LLOAD, productLocal);
+				w.op(ClassWriter.L2I);
+				w.op(ClassWriter.IASTORE);
+
+				w.op(ClassWriter.ALOAD, registersLocal);
+				w.pushInt(regHi);
+				w.op(ClassWriter.LLOAD, productLocal);
+				w.pushInt(32);
+				w.op(ClassWriter.LSHR);
+				w.op(ClassWriter.L2I);
+				w.op(ClassWriter.IASTORE);
+
+				retire(w, loadPending);
+				return;
+
+			case Mips.MTLO:
+			case Mips.MTHI:
+				w.op(ClassWriter.ALOAD, registersLocal);
+				w.pushInt(info.operation == Mips.MTLO ? regLo : regHi);
+				loadRegister(w, rs);
+				w.op(ClassWriter.IASTORE);
+
+				retire(w, loadPending);
+				return;
+			}
+
+			// the value has no side effects, so it is not needed for $0
+			if (dstReg == 0) {
+				retire(w, loadPending);
+				return;
+			}
+
+			w.op(ClassWriter.ALOAD, registersLocal);
+			w.pushInt(dstReg);
+
+			switch (info.operation) {
+			case Mips.ADD:
+				loadRegister(w, rs);
+				loadSource2(w, rt, imm, srcImm);
+				w.op(ClassWriter.IADD);
+				break;
+
+			case Mips.SUB:
+				loadRegister(w, rs);
+				loadRegister(w, rt);
+				w.op(ClassWriter.ISUB);
+				break;
+
+			case Mips.SLL:
+			case Mips.SRA:
+				loadRegister(w, rt);
+				loadSource2(w, rs, sh, srcShift);
+				w.op(info.operation == Mips.SLL ? ClassWriter.ISHL
+						: ClassWriter.ISHR);
+				break;
+
+			case Mips.SRL:
+				// shifts the sign-extended 64-bit value, as the interpreter does
+				loadRegister(w, rt);
+				w.op(ClassWriter.I2L);
+				if (srcShift) {
+					w.pushInt(sh);
+				}
+				else {
+					loadRegister(w, rs);
+					w.pushInt(0x1F);
+					w.op(ClassWriter.IAND);
+				}
+				w.op(ClassWriter.LUSHR);
+				w.op(ClassWriter.L2I);
+				break;
+
+			case Mips.SLT:
+				// flipping the sign bits makes a signed compare unsigned;
+				// the sign bit of the comparison is then the result
+				int flip = unsigned ? Integer.MIN_VALUE : 0;
+				loadRegister(w, rs);
+				if (unsigned) {
+					w.pushInt(flip);
+					w.op(ClassWriter.IXOR);
+				}
+				w.op(ClassWriter.I2L);
+				if (srcImm) {
+					w.pushInt(imm ^ flip);
+				}
+				else {
+					loadRegister(w, rt);
+					if (unsigned) {
+						w.pushInt(flip);
+						w.op(ClassWriter.IXOR);
+					}
+				}
+				w.op(ClassWriter.I2L);
+				w.op(ClassWriter.LCMP);
+				w.pushInt(31);
+				w.op(ClassWriter.IUSHR);
+				break;
+
+			case Mips.AND:
+			case Mips.OR:
+			case Mips.XOR:
+				loadRegister(w, rs);
+				loadSource2(w, rt, imm, srcImm);
+				w.op(info.operation == Mips.AND ? ClassWriter.IAND
+						: info.operation == Mips.OR ? ClassWriter.IOR
+								: ClassWriter.IXOR);
+				break;
+
+			case Mips.NOR:
+				loadRegister(w, rs);
+				loadRegister(w, rt);
+				w.op(ClassWriter.IOR);
+				w.pushInt(-1);
+				w.op(ClassWriter.IXOR);
+				break;
+
+			case Mips.LUI:
+				w.pushInt(imm << 16);
+				break;
+
+			case Mips.MFLO:
+				loadRegister(w, regLo);
+				break;
+
+			case Mips.MFHI:
+				loadRegister(w, regHi);
+				break;
+
+			default:
+				Lib.assertNotReached();
+			}
+
+			// the value was read before the pending load finishes
+			finishLoad(w, loadPending);
+			w.op(ClassWriter.IASTORE);
+			advancePC(w);
+		}
+
+		/**
+		 * Emit bytecode to push the value of register <i>number</i>.
+		 */
+		private void loadRegister(ClassWriter w, int number) {
+			w.op(ClassWriter.ALOAD, registersLocal);
+			w.pushInt(number);
+			w.op(ClassWriter.IALOAD);
+		}
+
+		/**
+		 * Emit bytecode to push the value of register <i>number</i> as a
+		 * <tt>long</tt>, zero-extended if <i>unsigned</i>.
+		 */
+		private void loadRegister(ClassWriter w, int number, boolean unsigned) {
+			loadRegister(w, number);
+			w.op(ClassWriter.I2L);
+			if (unsigned) {
+				w.pushLong(0xFFFFFFFFL);
+				w.op(ClassWriter.LAND);
+			}
+		}
+
+		/**
+		 * Emit bytecode to push a second source operand: the constant
+		 * <i>value</i> if <i>constant</i>, else register <i>number</i>.
+		 */
+		private void loadSource2(ClassWriter w, int number, int value,
+				boolean constant) {
+			if (constant)
+				w.pushInt(value);
+			else
+				loadRegister(w, number);
+		}
+
+		/**
+		 * Emit bytecode to finish the pending load, if there may be one.
+		 */
+		private void finishLoad(ClassWriter w, boolean loadPending) {
+			if (loadPending) {
+				w.op(ClassWriter.ALOAD_1);
+				w.op2(ClassWriter.INVOKEVIRTUAL, w.method(processorClass,
+						"finishLoad", "()V"));
+			}
+		}
+
+		/**
+		 * Emit bytecode with the effect of <tt>retire()</tt>.
+		 */
+		private void retire(ClassWriter w, boolean loadPending) {
+			finishLoad(w, loadPending);
+			advancePC(w);
+		}
+
+		/**
+		 * Emit bytecode to advance the PC to the next instruction.
+		 */
+		private void advancePC(ClassWriter w) {
+			w.op(ClassWriter.ALOAD, registersLocal);
+			w.pushInt(regPC);
+			loadRegister(w, regNextPC);
+			w.op(ClassWriter.IASTORE);
+
+			w.op(ClassWriter.ALOAD, registersLocal);
+			w.pushInt(regNextPC);
+			loadRegister(w, regNextPC);
+			w.pushInt(4);
+			w.op(ClassWriter.IADD);
+			w.op(ClassWriter.IASTORE);
+		}
+
+		private MethodHandles.Lookup lookup;
+
+		private MethodHandle defineHiddenClass;
+
+		private Object options;
+
+		private static final String processorClass = "nachos/machine/Processor";
+
+		private static final String opClass = processorClass + "$Op";
+
+		private static final String checkClass = processorClass + "$Check";
+
+		private static final String exceptionClass = processorClass
+				+ "$MipsException";
+
+		private static final String compiledClass = processorClass
+				+ "$Compiled";
+
+		// locals 0-4 hold this, the processor, the ops, and the start epoch
+		private static final int registersLocal = 5, productLocal = 6;
+
+		private static final int maxLocals = 8, maxStack = 10;
+	}
+
+	/**
+	 * Writes the class file of a compiled block: a final class implementing
+	 * one interface, with a public constructor and a public <tt>run()</tt>
+	 * method, whose bytecode is appended one opcode at a time. Only the
+	 * constant pool entries, opcodes, and stack map frames compiled blocks
+	 * need are supported.
+	 */
+	private static class ClassWriter {
+		/**
+		 * Append an opcode with no operands.
+		 * 
+		 * @param opcode the opcode.
+		 */
+		void op(int opcode) {
+			code.write(opcode);
+		}
+
+		/**
+		 * Append an opcode with a one-byte operand.
+		 * 
+		 * @param opcode the opcode.
+		 * @param operand the operand.
+		 */
+		void op(int opcode, int operand) {
+			Lib.assertTrue(operand >= 0 && operand < 0x100);
+
+			code.write(opcode);
+			code.write(operand);
+		}
+
+		/**
+		 * Append an opcode with a two-byte operand.
+		 * 
+		 * @param opcode the opcode.
+		 * @param operand the operand.
+		 */
+		void op2(int opcode, int operand) {
+			code.write(opcode);
+			code.write(operand >> 8);
+			code.write(operand);
+		}
+
+		/**
+		 * Append bytecode to push an <tt>int</tt> constant.
+		 * 
+		 * @param value the constant.
+		 */
+		void pushInt(int value) {
+			if (value >= -1 && value <= 5)
+				op(ICONST_0 + value);
+			else if (value == (byte) value)
+				op(BIPUSH, value & 0xFF);
+			else if (value == (short) value)
+				op2(SIPUSH, value & 0xFFFF);
+			else
+				loadConstant(integer(value));
+		}
+
+		/**
+		 * Append bytecode to push a <tt>long</tt> constant.
+		 * 
+		 * @param value the constant.
+		 */
+		void pushLong(long value) {
+			op2(LDC2_W, constant("J" + value, 5, value, 8));
+		}
+
+		/**
+		 * Record a stack map frame at the current offset, which must be the
+		 * target of a branch. The stack must be empty, and the locals must be
+		 * the parameters and then the registers array.
+		 */
+		void frame() {
+			frames.add(code.size());
+		}
+
+		/** Return the constant pool index of a field reference. */
+		int field(String owner, String name, String descriptor) {
+			return member(9, owner, name, descriptor);
+		}
+
+		/** Return the constant pool index of a method reference. */
+		int method(String owner, String name, String descriptor) {
+			return member(10, owner, name, descriptor);
+		}
+
+		/**
+		 * Return the class file.
+		 * 
+		 * @param name the name of the class.
+		 * @param iface the name of the interface it implements.
+		 * @param descriptor the descriptor of the <tt>run()</tt> method.
+		 * @param maxStack the maximum depth of the operand stack.
+		 * @param maxLocals the number of local variable slots.
+		 * @return the class file.
+		 */
+		byte[] toByteArray(String name, String iface, String descriptor,
+				int maxStack, int maxLocals) {
+			int thisClass = classRef(name);
+			int superClass = classRef("java/lang/Object");
+			int ifaceClass = classRef(iface);
+			int superInit = member(10, "java/lang/Object", "<init>", "()V");
+			int initName = utf8("<init>"), initDescriptor = utf8("()V");
+			int runName = utf8("run"), runDescriptor = utf8(descriptor);
+			int codeName = utf8("Code");
+			int frameName = utf8("StackMapTable");
+			int registersType = classRef("[I");
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+
+			try {
+				out.writeInt(0xCAFEBABE);
+				out.writeShort(0);
+				out.writeShort(classVersion);
+				out.writeShort(numConstants);
+				pool.writeTo(out);
+
+				out.writeShort(ACC_FINAL | ACC_SUPER);
+				out.writeShort(thisClass);
+				out.writeShort(superClass);
+				out.writeShort(1);
+				out.writeShort(ifaceClass);
+				out.writeShort(0);
+				out.writeShort(2);
+
+				// the constructor only calls Object's
+				out.writeShort(ACC_PUBLIC);
+				out.writeShort(initName);
+				out.writeShort(initDescriptor);
+				out.writeShort(1);
+				out.writeShort(codeName);
+				out.writeInt(12 + 5);
+				out.writeShort(1);
+				out.writeShort(1);
+				out.writeInt(5);
+				out.writeByte(ALOAD_0);
+				out.writeByte(INVOKESPECIAL);
+				out.writeShort(superInit);
+				out.writeByte(RETURN);
+				out.writeShort(0);
+				out.writeShort(0);
+
+				// the first frame adds the registers array to the locals, and
+				// the rest keep the same locals
+				ByteArrayOutputStream table = new ByteArrayOutputStream();
+				DataOutputStream entries = new DataOutputStream(table);
+				for (int i = 0; i < frames.size(); i++) {
+					int delta = (i == 0) ? frames.get(0) : frames.get(i)
+							- frames.get(i - 1) - 1;
+					if (i == 0) {
+						entries.writeByte(252);
+						entries.writeShort(delta);
+						entries.writeByte(7);
+						entries.writeShort(registersType);
+					}
+					else if (delta < 64) {
+						entries.writeByte(delta);
+					}
+					else {
+						entries.writeByte(251);
+						entries.writeShort(delta);
+					}
+				}
+
+				int tableLength = frames.isEmpty() ? 0 : 8 + table.size();
+
+				out.writeShort(ACC_PUBLIC);
+				out.writeShort(runName);
+				out.writeShort(runDescriptor);
+				out.writeShort(1);
+				out.writeShort(codeName);
+				out.writeInt(12 + code.size() + tableLength);
+				out.writeShort(maxStack);
+				out.writeShort(maxLocals);
+				out.writeInt(code.size());
+				code.writeTo(out);
+				out.writeShort(0);
+				if (frames.isEmpty()) {
+					out.writeShort(0);
+				}
+				else {
+					out.writeShort(1);
+					out.writeShort(frameName);
+					out.writeInt(2 + table.size());
+					out.writeShort(frames.size());
+					table.writeTo(out);
+				}
+
+				out.writeShort(0);
+			}
+			catch (IOException e) {
+				Lib.assertNotReached();
+			}
+
+			return bytes.toByteArray();
+		}
+
+		/** Append bytecode to push the constant at <i>index</i>. */
+		private void loadConstant(int index) {
+			if (index < 0x100)
+				op(LDC, index);
+			else
+				op2(LDC_W, index);
+		}
+
+		private int utf8(String value) {
+			Integer index = constants.get("U" + value);
+			if (index != null)
+				return index;
+
+			try {
+				poolOut.writeByte(1);
+				poolOut.writeUTF(value);
+			}
+			catch (IOException e) {
+				Lib.assertNotReached();
+			}
+
+			return add("U" + value, 1);
+		}
+
+		private int classRef(String name) {
+			return constant("C" + name, 7, utf8(name), 2);
+		}
+
+		private int integer(int value) {
+			return constant("I" + value, 3, value, 4);
+		}
+
+		private int member(int tag, String owner, String name,
+				String descriptor) {
+			int ownerClass = classRef(owner);
+			int nameAndType = constant("N" + name + " " + descriptor, 12,
+					(utf8(name) << 16) | utf8(descriptor), 4);
+
+			return constant(tag + owner + "." + name + " " + descriptor, tag,
+					(ownerClass << 16) | nameAndType, 4);
+		}
+
+		/**
+		 * Return the index of a constant pool entry whose body is a number,
+		 * adding the entry if it is not already there.
+		 * 
+		 * @param key identifies the entry.
+		 * @param tag the entry's tag.
+		 * @param body the entry's body.
+		 * @param size the size of the body in bytes (2, 4, or 8).
+		 * @return the entry's index.
+		 */
+		private int constant(String key, int tag, long body, int size) {
+			Integer index = constants.get(key);
+			if (index != null)
+				return index;
+
+			try {
+				poolOut.writeByte(tag);
+				for (int i = size - 1; i >= 0; i--)
+					poolOut.writeByte((int) (body >> (i * 8)));
+			}
+			catch (IOException e) {
+				Lib.assertNotReached();
+			}
+
+			// a long takes two slots
+			return add(key, size == 8 ? 2 : 1);
+		}
+
+		/**
+		 * Record the index of the entry just written to the constant pool.
+		 * 
+		 * @param key identifies the entry.
+		 * @param slots the number of slots the entry takes.
+		 * @return the entry's index.
+		 */
+		private int add(String key, int slots) {
+			int index = numConstants;
+			numConstants += slots;
+			constants.put(key, index);
+			return index;
+		}
+
+		private ByteArrayOutputStream code = new ByteArrayOutputStream();
+
+		private ByteArrayOutputStream pool = new ByteArrayOutputStream();
+
+		private DataOutputStream poolOut = new DataOutputStream(pool);
+
+		private int numConstants = 1;
+
+		private HashMap<String, Integer> constants = new HashMap<String, Integer>();
+
+		private ArrayList<Integer> frames = new ArrayList<Integer>();
+
+		/** Java 11, the first version with nestmates. */
+		private static final int classVersion = 55;
+
+		private static final int ACC_PUBLIC = 0x0001, ACC_FINAL = 0x0010,
+				ACC_SUPER = 0x0020;
+
+		static final int ACONST_NULL = 1, ICONST_0 = 3, BIPUSH = 16,
+				SIPUSH = 17, LDC = 18, LDC_W = 19, LDC2_W = 20, LLOAD = 22,
+				ALOAD = 25, LLOAD_3 = 33, ALOAD_0 = 42, ALOAD_1 = 43,
+				ALOAD_2 = 44, IALOAD = 46, AALOAD = 50, LSTORE = 55,
+				ASTORE = 58, IASTORE = 79, DUP = 89, IADD = 96, ISUB = 100,
+				LMUL = 105, ISHL = 120, ISHR = 122, LSHR = 123, IUSHR = 124,
+				LUSHR = 125, IAND = 126, LAND = 127, IOR = 128, IXOR = 130,
+				I2L = 133, L2I = 136, LCMP = 148, IFEQ = 153, RETURN = 177,
+				GETFIELD = 180, INVOKEVIRTUAL = 182, INVOKESPECIAL = 183;
+	}
+
+	/**
+	 * Execute <i>op</i> in the differential test mode.
+	 * 
+	 * @param op the operation to check.
+	 */
+	private void verify(Op op) throws MipsException {
+		check.begin();
+
+		MipsException actual = null;
+		try {
+			op.execute();
+		}
+		catch (MipsException e) {
+			actual = e;
+		}
+
+		check.end(actual);
+	}
+
+	/**
+	 * Checks one instruction in the differential test mode. <tt>begin()</tt>
+	 * runs the interpreter on the instruction at the PC, then rewinds the
+	 * registers, the pending load, memory, and the statistics. The block
+	 * engine then runs the same instruction, and <tt>end()</tt> requires both
+	 * to have left the same registers and pending load, stored the same bytes
+	 * to the same physical addresses, changed the statistics by the same
+	 * amounts, and raised the same exception, if any.
+	 * 
+	 * <p>
+	 * Each check also requires that exactly one user tick passed since the
+	 * last checked instruction completed, unless a handler has run since.
+	 */
+	private class Check {
+		/**
+		 * Run the interpreter on the instruction at the PC, and rewind its
+		 * effects.
+		 */
+		void begin() {
+			before = registers.clone();
+			target = loadTarget;
+			value = loadValue;
+			mask = loadMask;
+			stats = snapshotStats();
+
+			pc = "0x" + Lib.toHexString(before[regPC]);
+
+			if (verifiedTime != -1 && verifiedEpoch == epoch) {
+				Lib.assertTrue(stats[0] == verifiedTime + Stats.UserTick,
+						"block engine advanced time by "
+								+ (stats[0] - verifiedTime) + " ticks before PC="
+								+ pc);
+			}
+			verifiedTime = -1;
+
+			// the same exception object is thrown every time, so copy it out
+			expectedCause = -1;
+			storeLog = new ArrayList<int[]>();
+			try {
+				verifier.run();
+			}
+			catch (MipsException e) {
+				expectedCause = e.cause;
+				expectedHasBadVAddr = e.hasBadVAddr;
+				expectedBadVAddr = e.badVAddr;
+			}
+
+			after = registers.clone();
+			afterTarget = loadTarget;
+			afterValue = loadValue;
+			afterMask = loadMask;
+			afterStats = snapshotStats();
+			afterStores = storeLog;
+
+			System.arraycopy(before, 0, registers, 0, numUserRegisters);
+			loadTarget = target;
+			loadValue = value;
+			loadMask = mask;
+
+			// put back the bytes the interpreter replaced, latest store first
+			for (int i = afterStores.size() - 1; i >= 0; i--) {
+				int[] store = afterStores.get(i);
+				Lib.bytesFromInt(mainMemory, store[0], store[1], store[2]);
+			}
+
+			// only the run that counts should show up in the statistics
+			restoreStats(stats);
+
+			storeLog = new ArrayList<int[]>();
+		}
+
+		/**
+		 * Require the block engine to have matched the interpreter, and
+		 * rethrow the exception it raised, if any.
+		 * 
+		 * @param actual the exception the block engine raised, or
+		 * <tt>null</tt>.
+		 */
+		void end(MipsException actual) throws MipsException {
+			ArrayList<int[]> actualStores = storeLog;
+			storeLog = null;
+
+			for (int i = 0; i < numUserRegisters; i++) {
+				Lib.assertTrue(registers[i] == after[i], "block engine wrote 0x"
+						+ Lib.toHexString(registers[i]) + " to register " + i
+						+ " at PC=" + pc + ", interpreter wrote 0x"
+						+ Lib.toHexString(after[i]));
+			}
+
+			Lib.assertTrue(loadTarget == afterTarget && loadValue == afterValue
+					&& loadMask == afterMask,
+					"block engine scheduled a different load at PC=" + pc);
+
+			checkStores(actualStores, afterStores, pc);
+
+			long[] actualStats = snapshotStats();
+			for (int i = 0; i < stats.length; i++) {
+				Lib.assertTrue(actualStats[i] == afterStats[i],
+						"block engine changed statistic " + i + " by "
+								+ (actualStats[i] - stats[i]) + " at PC=" + pc
+								+ ", interpreter changed it by "
+								+ (afterStats[i] - stats[i]));
+			}
+
+			if (expectedCause == -1) {
+				Lib.assertTrue(actual == null, "block engine raised "
+						+ exceptionNames[actual == null ? 0 : actual.cause]
+						+ " at PC=" + pc);
+			}
+			else {
+				Lib.assertTrue(actual != null && actual.cause == expectedCause
+						&& actual.hasBadVAddr == expectedHasBadVAddr
+						&& actual.badVAddr == expectedBadVAddr,
+						"block engine did not raise "
+								+ exceptionNames[expectedCause] + " at PC="
+								+ pc);
+				throw actual;
+			}
+
+			verifiedTime = actualStats[0];
+			verifiedEpoch = epoch;
+		}
+
+		// the state before the instruction
+		private int[] before;
+
+		private int target, value, mask;
+
+		private long[] stats;
+
+		private String pc;
+
+		// the interpreter's results
+		private int[] after;
+
+		private int afterTarget, afterValue, afterMask;
+
+		private long[] afterStats;
+
+		private ArrayList<int[]> afterStores;
+
+		private int expectedCause, expectedBadVAddr;
+
+		private boolean expectedHasBadVAddr;
+
+		/**
+		 * The user time after the last checked instruction completed, or -1
+		 * if it raised an exception.
+		 */
+		private long verifiedTime = -1;
+
+		/** The value of <tt>epoch</tt> when <tt>verifiedTime</tt> was set. */
+		private long verifiedEpoch;
+	}
+
+	/**
+	 * Require the stores made by the block engine to match the stores the
+	 * interpreter made for the same instruction.
+	 * 
+	 * @param actual the stores the block engine made.
+	 * @param expected the stores the interpreter made.
+	 * @param pc the PC of the instruction, for error messages.
+	 */
+	private void checkStores(ArrayList<int[]> actual,
+			ArrayList<int[]> expected, String pc) {
+		Lib.assertTrue(actual.size() == expected.size(), "block engine made "
+				+ actual.size() + " stores at PC=" + pc
+				+ ", interpreter made " + expected.size());
+
+		for (int i = 0; i < expected.size(); i++) {
+			int[] store = actual.get(i), wanted = expected.get(i);
+			Lib.assertTrue(store[0] == wanted[0] && store[1] == wanted[1]
+					&& store[3] == wanted[3], "block engine stored 0x"
+					+ Lib.toHexString(store[3], store[1] * 2) + " to paddr 0x"
+					+ Lib.toHexString(store[0]) + " at PC=" + pc
+					+ ", interpreter stored 0x"
+					+ Lib.toHexString(wanted[3], wanted[1] * 2)
+					+ " to paddr 0x" + Lib.toHexString(wanted[0]));
+		}
+	}
+
+	/**
+	 * Return the statistics an instruction can change, for the differential
+	 * test mode. The first is the user time, counting ticks not yet accounted
+	 * for.
+	 * 
+	 * @return the statistics.
+	 */
+	private long[] snapshotStats() {
+		Stats stats = privilege.stats;
+
+		return new long[] {
+				stats.userTicks + (long) unaccountedTicks * Stats.UserTick,
+				stats.totalTicks, stats.kernelTicks, unaccountedTicks,
+				stats.numPageFaults, stats.numTLBMisses };
+	}
+
+	/**
+	 * Rewind the statistics to a snapshot from <tt>snapshotStats()</tt>.
+	 * 
+	 * @param snapshot the statistics to rewind to.
+	 */
+	private void restoreStats(long[] snapshot) {
+		Stats stats = privilege.stats;
+
+		stats.totalTicks = snapshot[1];
+		stats.kernelTicks = snapshot[2];
+		unaccountedTicks = (int) snapshot[3];
+		stats.userTicks = snapshot[0] - (long) unaccountedTicks
+				* Stats.UserTick;
+		stats.numPageFaults = (int) snapshot[4];
+		stats.numTLBMisses = (int) snapshot[5];
+	}
+
+	/**
+	 * A single prebuilt instruction. Executing it has exactly the effect that
+	 * <tt>Instruction.run()</tt> would have for the same instruction word.
+	 */
+	private abstract class Op {
+		abstract void execute() throws MipsException;
+	}
+
+	/**
+	 * Throw an overflow exception if the 64-bit result of a signed operation
+	 * fails the same test <tt>Instruction.writeBack()</tt> applies.
+	 * 
+	 * @param dst the 64-bit result.
+	 */
+	private void checkOverflow(long dst) throws MipsException {
+		if (Lib.test(dst, 31) != Lib.test(dst, 32))
+			throw trap(exceptionOverflow);
+	}
+
+	/**
+	 * Build the specialized operation for a decoded instruction.
+	 * 
+	 * @param info the decoded instruction.
+	 * @return an operation that executes it.
+	 */
+	private Op newOp(Decoded info) {
+		final int rs = info.rs, rt = info.rt, sh = info.sh & 0x1F;
+		final int imm = info.imm, size = info.size, dstReg = info.dstReg;
+		final int linkReg = info.test(Mips.LINK) ? dstReg : 0;
+		final boolean overflow = info.test(Mips.OVERFLOW);
+		final boolean unsigned = info.test(Mips.UNSIGNED);
+
+		switch (info.operation) {
+		case Mips.ADD:
+			if (info.test(Mips.SRC2IMM)) {
+				if (overflow)
+					return new Op() {
+						void execute() throws MipsException {
+							long dst = (long) registers[rs] + imm;
+							checkOverflow(dst);
+							retire(dstReg, (int) dst);
+						}
+					};
+				return new Op() {
+					void execute() {
+						retire(dstReg, registers[rs] + imm);
+					}
+				};
+			}
+			if (overflow)
+				return new Op() {
+					void execute() throws MipsException {
+						long dst = (long) registers[rs] + registers[rt];
+						checkOverflow(dst);
+						retire(dstReg, (int) dst);
+					}
+				};
+			return new Op() {
+				void execute() {
+					retire(dstReg, registers[rs] + registers[rt]);
+				}
+			};
+
+		case Mips.SUB:
+			if (overflow)
+				return new Op() {
+					void execute() throws MipsException {
+						long dst = (long) registers[rs] - registers[rt];
+						checkOverflow(dst);
+						retire(dstReg, (int) dst);
+					}
+				};
+			return new Op() {
+				void execute() {
+					retire(dstReg, registers[rs] - registers[rt]);
+				}
+			};
+
+		case Mips.MULT:
+			if (unsigned)
+				return new Op() {
+					void execute() {
+						long dst = (registers[rs] & 0xFFFFFFFFL)
+								* (registers[rt] & 0xFFFFFFFFL);
+						registers[regLo] = (int) dst;
+						registers[regHi] = (int) (dst >> 32);
+						retire();
+					}
+				};
+			return new Op() {
+				void execute() {
+					long dst = (long) registers[rs] * registers[rt];
+					registers[regLo] = (int) dst;
+					registers[regHi] = (int) (dst >> 32);
+					retire();
+				}
+			};
+
+		case Mips.DIV:
+			return new Op() {
+				void execute() throws MipsException {
+					long src1 = registers[rs], src2 = registers[rt];
+					if (unsigned) {
+						src1 &= 0xFFFFFFFFL;
+						src2 &= 0xFFFFFFFFL;
+					}
+
+					try {
+						registers[regLo] = (int) (src1 / src2);
+						registers[regHi] = (int) (src1 % src2);
+						if (registers[regLo] * src2 + registers[regHi] != src1)
+							throw new ArithmeticException();
+					}
+					catch (ArithmeticException e) {
+						throw trap(exceptionOverflow);
+					}
+					retire();
+				}
+			};
+
+		case Mips.SLL:
+			if (info.test(Mips.SRC1SH))
+				return new Op() {
+					void execute() {
+						retire(dstReg, registers[rt] << sh);
+					}
+				};
+			return new Op() {
+				void execute() {
+					retire(dstReg, registers[rt] << (registers[rs] & 0x1F));
+				}
+			};
+
+		case Mips.SRA:
+			if (info.test(Mips.SRC1SH))
+				return new Op() {
+					void execute() {
+						retire(dstReg, registers[rt] >> sh);
+					}
+				};
+			return new Op() {
+				void execute() {
+					retire(dstReg, registers[rt] >> (registers[rs] & 0x1F));
+				}
+			};
+
+		case Mips.SRL:
+			// shifts the sign-extended 64-bit value, as the interpreter does
+			if (info.test(Mips.SRC1SH))
+				return new Op() {
+					void execute() {
+						retire(dstReg, (int) ((long) registers[rt] >>> sh));
+					}
+				};
+			return new Op() {
+				void execute() {
+					retire(dstReg,
+							(int) ((long) registers[rt] >>> (registers[rs] & 0x1F)));
+				}
+			};
+
+		case Mips.SLT:
+			if (info.test(Mips.SRC2IMM)) {
+				if (unsigned)
+					return new Op() {
+						void execute() {
+							retire(dstReg,
+									(registers[rs] & 0xFFFFFFFFL) < (imm & 0xFFFFFFFFL) ? 1
+											: 0);
+						}
+					};
+				return new Op() {
+					void execute() {
+						retire(dstReg, registers[rs] < imm ? 1 : 0);
+					}
+				};
+			}
+			if (unsigned)
+				return new Op() {
+					void execute() {
+						retire(dstReg, (registers[rs] & 0xFFFFFFFFL) < (registers[rt] & 0xFFFFFFFFL) ? 1
+								: 0);
+					}
+				};
+			return new Op() {
+				void execute() {
+					retire(dstReg, registers[rs] < registers[rt] ? 1 : 0);
+				}
+			};
+
+		case Mips.AND:
+			if (info.test(Mips.SRC2IMM))
+				return new Op() {
+					void execute() {
+						retire(dstReg, registers[rs] & imm);
+					}
+				};
+			return new Op() {
+				void execute() {
+					retire(dstReg, registers[rs] & registers[rt]);
+				}
+			};
+
+		case Mips.OR:
+			if (info.test(Mips.SRC2IMM))
+				return new Op() {
+					void execute() {
+						retire(dstReg, registers[rs] | imm);
+					}
+				};
+			return new Op() {
+				void execute() {
+					retire(dstReg, registers[rs] | registers[rt]);
+				}
+			};
+
+		case Mips.XOR:
+			if (info.test(Mips.SRC2IMM))
+				return new Op() {
+					void execute() {
+						retire(dstReg, registers[rs] ^ imm);
+					}
+				};
+			return new Op() {
+				void execute() {
+					retire(dstReg, registers[rs] ^ registers[rt]);
+				}
+			};
+
+		case Mips.NOR:
+			return new Op() {
+				void execute() {
+					retire(dstReg, ~(registers[rs] | registers[rt]));
+				}
+			};
+
+		case Mips.LUI:
+			return new Op() {
+				void execute() {
+					retire(dstReg, imm << 16);
+				}
+			};
+
+		case Mips.MFLO:
+			return new Op() {
+				void execute() {
+					retire(dstReg, registers[regLo]);
+				}
+			};
+
+		case Mips.MFHI:
+			return new Op() {
+				void execute() {
+					retire(dstReg, registers[regHi]);
+				}
+			};
+
+		case Mips.MTLO:
+			return new Op() {
+				void execute() {
+					registers[regLo] = registers[rs];
+					retire();
+				}
+			};
+
+		case Mips.MTHI:
+			return new Op() {
+				void execute() {
+					registers[regHi] = registers[rs];
+					retire();
+				}
+			};
+
+		case Mips.JUMP:
+			if (info.format == Mips.JFMT) {
+				final int target = info.target << 2;
+				return new Op() {
+					void execute() {
+						retireBranch(true, (registers[regNextPC] & 0xF0000000)
+								| target, linkReg);
+					}
+				};
+			}
+			return new Op() {
+				void execute() {
+					retireBranch(true, registers[rs], linkReg);
+				}
+			};
+
+		case Mips.BEQ:
+			return new Op() {
+				void execute() {
+					retireBranch(registers[rs] == registers[rt],
+							registers[regNextPC] + (imm << 2), linkReg);
+				}
+			};
+
+		case Mips.BNE:
+			return new Op() {
+				void execute() {
+					retireBranch(registers[rs] != registers[rt],
+							registers[regNextPC] + (imm << 2), linkReg);
+				}
+			};
+
+		case Mips.BLEZ:
+			return new Op() {
+				void execute() {
+					retireBranch(registers[rs] <= 0, registers[regNextPC]
+							+ (imm << 2), linkReg);
+				}
+			};
+
+		case Mips.BGTZ:
+			return new Op() {
+				void execute() {
+					retireBranch(registers[rs] > 0, registers[regNextPC]
+							+ (imm << 2), linkReg);
+				}
+			};
+
+		case Mips.BLTZ:
+			return new Op() {
+				void execute() {
+					retireBranch(registers[rs] < 0, registers[regNextPC]
+							+ (imm << 2), linkReg);
+				}
+			};
+
+		case Mips.BGEZ:
+			return new Op() {
+				void execute() {
+					retireBranch(registers[rs] >= 0, registers[regNextPC]
+							+ (imm << 2), linkReg);
+				}
+			};
+
+		case Mips.SYSCALL:
+			return new Op() {
+				void execute() throws MipsException {
+					throw trap(exceptionSyscall);
+				}
+			};
+
+		case Mips.LOAD:
+			return new Op() {
+				void execute() throws MipsException {
+					int value = readMem(registers[rs] + imm, size);
+					if (!unsigned)
+						value = Lib.extend(value, 0, size * 8);
+
+					delayedLoad(dstReg, value, 0xFFFFFFFF);
+					advancePC(registers[regNextPC] + 4);
+				}
+			};
+
+		case Mips.LWL:
+			return new Op() {
+				void execute() throws MipsException {
+					int addr = registers[rs] + imm;
+					int value = readMem(addr & ~0x3, 4);
+
+					// LWL shifts the input left so the addressed byte is highest
+					int preserved = (3 - (addr & 0x3)) * 8;
+
+					delayedLoad(dstReg, value << preserved, -1 << preserved);
+					advancePC(registers[regNextPC] + 4);
+				}
+			};
+
+		case Mips.LWR:
+			return new Op() {
+				void execute() throws MipsException {
+					int addr = registers[rs] + imm;
+					int value = readMem(addr & ~0x3, 4);
+
+					// LWR shifts the input right so the addressed byte is lowest
+					int preserved = (addr & 0x3) * 8;
+
+					delayedLoad(dstReg, value >>> preserved, -1 >>> preserved);
+					advancePC(registers[regNextPC] + 4);
+				}
+			};
+
+		case Mips.STORE:
+			return new Op() {
+				void execute() throws MipsException {
+					writeMem(registers[rs] + imm, size, registers[rt]);
+					retire();
+				}
+			};
+
+		case Mips.SWL:
+			return new Op() {
+				void execute() throws MipsException {
+					int addr = registers[rs] + imm;
+					int value = readMem(addr & ~0x3, 4);
+
+					// SWL shifts highest order byte into the addressed position
+					int preserved = (3 - (addr & 0x3)) * 8;
+					int mask = -1 >>> preserved;
+					int dst = (registers[rt] >>> preserved) & mask;
+
+					writeMem(addr & ~0x3, 4, dst | (value & ~mask));
+					retire();
+				}
+			};
+
+		case Mips.SWR:
+			return new Op() {
+				void execute() throws MipsException {
+					int addr = registers[rs] + imm;
+					int value = readMem(addr & ~0x3, 4);
+
+					// SWR shifts the lowest order byte into the addressed position
+					int preserved = (addr & 0x3) * 8;
+					int mask = -1 << preserved;
+					int dst = (registers[rt] << preserved) & mask;
+
+					writeMem(addr & ~0x3, 4, dst | (value & ~mask));
+					retire();
+				}
+			};
+
+		case Mips.UNIMPL:
+			return new Op() {
+				void execute() throws MipsException {
+					System.err.println("Warning: encountered unimplemented inst");
+					throw trap(exceptionIllegalInstruction);
+				}
+			};
+
+		case Mips.INVALID:
+			return new Op() {
+				void execute() throws MipsException {
+					throw trap(exceptionIllegalInstruction);
+				}
+			};
+
+		default:
+			Lib.assertNotReached();
+			return null;
+		}
+	}
+
+	/**
+	 * The parts of an instruction that depend only on the instruction word,
+	 * and not on the state of the processor.
+	 */
+	private static class Decoded {
+		Decoded(int value) {
+			this.value = value;
+
+			op = Lib.extract(value, 26, 6);
+			rs = Lib.extract(value, 21, 5);
+			rt = Lib.extract(value, 16, 5);
+			rd = Lib.extract(value, 11, 5);
+			sh = Lib.extract(value, 6, 5);
+			func = Lib.extract(value, 0, 6);
+			target = Lib.extract(value, 0, 26);
+
+			Mips info;
+			switch (op) {
+			case 0:
+				info = Mips.specialtable[func];
+				break;
+			case 1:
+				info = Mips.regimmtable[rt];
+				break;
+			default:
+				info = Mips.optable[op];
+				break;
+			}
+
+			operation = info.operation;
+			name = info.name;
+			format = info.format;
+			flags = info.flags;
+
+			// get memory access size
+			if (test(Mips.SIZEB))
+				size = 1;
+			else if (test(Mips.SIZEH))
+				size = 2;
+			else if (test(Mips.SIZEW))
+				size = 4;
+			else
+				size = 0;
+
+			// get dstReg
+			if (test(Mips.DSTRA))
+				dstReg = regRA;
+			else if (format == Mips.IFMT)
+				dstReg = rt;
+			else if (format == Mips.RFMT)
+				dstReg = rd;
+			else
+				dstReg = -1;
+
+			// get imm
+			if (test(Mips.UNSIGNED))
+				imm = Lib.extract(value, 0, 16);
+			else
+				imm = Lib.extend(value, 0, 16);
+		}
+
+		boolean test(int flag) {
+			return Lib.test(flag, flags);
+		}
+
+		/** The instruction word this was decoded from. */
+		final int value;
+
+		final int op, rs, rt, rd, sh, func, target, imm;
+
+		final int operation, format, flags;
+
+		final String name;
+
+		final int size, dstReg;
+	}
+
 	private static class Mips {
 		Mips() {
 		}
@@ -26,11 +26,28 @@ public final class Stats {
 				+ ", writes " + numConsoleWrites);
 		System.out.println("Paging: page faults " + numPageFaults
 				+ ", TLB misses " + numTLBMisses);
-		System.out.println("Swap: COFF reads " + numCOFFReads
-				+ ", swap reads " + numSwapReads
-			        + ", swap writes " + numSwapWrites);
+		System.out.println("Swap: COFF reads " + kernel.numCOFFReads
+				+ ", swap reads " + kernel.numSwapReads
+				+ ", swap writes " + kernel.numSwapWrites
+				+ ", swap file operations " + kernel.numSwapFileOps
+				+ ", read ahead " + kernel.numReadAheads);
+		if (numPageFaults > 0) {
+			System.out.println("Page-out: daemon evictions "
+					+ kernel.numPageOuts + ", fault evictions "
+					+ kernel.numFaultEvictions + ", reclaims "
+					+ kernel.numReclaims + ", average fault latency "
+					+ kernel.faultTicks / numPageFaults);
+		}
 		System.out.println("Network I/O: received " + numPacketsReceived
 				+ ", sent " + numPacketsSent);
+		if (kernel.numThreadsStarted > 0) {
+			System.out.println("Threads: started " + kernel.numThreadsStarted
+					+ ", finished " + kernel.numThreadsFinished
+					+ ", average response " + kernel.responseTicks
+					/ kernel.numThreadsStarted + ", average turnaround "
+					+ (kernel.numThreadsFinished > 0 ? kernel.turnaroundTicks
+							/ kernel.numThreadsFinished : 0));
+		}
 	}
 
 	/**
@@ -66,21 +83,17 @@ public final class Stats {
 	/** The total number of TLB misses that have occurred. */
 	public int numTLBMisses = 0;
 
-        /** The total number of pages read from COFF files. */
-        public int numCOFFReads = 0;
-
-        /** The total number of pages read from swap. */
-        public int numSwapReads = 0;
-
-        /** The total number of pages written to swap. */
-        public int numSwapWrites = 0;
-
 	/** The total number of packets Nachos has sent to the network. */
 	public int numPacketsSent = 0;
 
 	/** The total number of packets Nachos has received from the network. */
 	public int numPacketsReceived = 0;
 
+	/**
+	 * The statistics the kernel records itself, printed along with these.
+	 */
+	final KernelStats kernel = new KernelStats(this);
+
 	/**
 	 * The amount to advance simulated time after each user instructions is
 	 * executed.
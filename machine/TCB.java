@@ -5,13 +5,37 @@ package nachos.machine;
 import nachos.security.*;
 import nachos.threads.KThread;
 
-import java.util.Vector;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
  * A TCB simulates the low-level details necessary to create, context-switch,
  * and destroy Nachos threads. Each TCB controls an underlying JVM Thread
- * object.
+ * object. When a TCB is destroyed, its JVM thread is kept to run the next TCB
+ * to start, so forking a short-lived Nachos thread does not usually create a
+ * new JVM thread.
+ * 
+ * <p>
+ * By default these are platform threads. On a JVM that supports them, they
+ * can instead be virtual threads, which are much cheaper to create and to
+ * switch between, by adding this line to the configuration file:
+ * 
+ * <pre>
+ * TCB.threads = virtual
+ * </pre>
+ * 
+ * <p>
+ * The number of TCBs that can exist at once, and the stack size of each
+ * platform thread, in bytes, can also be set:
+ * 
+ * <pre>
+ * TCB.maxThreads = 10000
+ * TCB.stackSize = 65536
+ * </pre>
  * 
  * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
@@ -39,6 +63,42 @@ public final class TCB {
 	public static void givePrivilege(Privilege privilege) {
 		TCB.privilege = privilege;
 		privilege.tcb = new TCBPrivilege();
+
+		String threads = Config.getString("TCB.threads", "platform");
+		Lib.assertTrue(threads.equals("platform") || threads.equals("virtual"),
+				"unknown TCB.threads: " + threads);
+
+		// virtual threads are newer than the rest of the code, so find them
+		// by reflection
+		if (threads.equals("virtual")) {
+			try {
+				virtualThreadBuilder = Thread.class.getMethod("ofVirtual")
+						.invoke(null);
+				unstartedVirtualThread = Class.forName(
+						"java.lang.Thread$Builder").getMethod("unstarted",
+						Runnable.class);
+			}
+			catch (Exception e) {
+				Lib.assertNotReached("this JVM does not support virtual threads");
+			}
+		}
+
+		maxThreads = Config.getInteger("TCB.maxThreads", maxThreads);
+		Lib.assertTrue(maxThreads > 0, "TCB.maxThreads must be positive");
+
+		// zero leaves the stack size up to the JVM
+		stackSize = Config.getInteger("TCB.stackSize", 0);
+		Lib.assertTrue(stackSize >= 0, "TCB.stackSize must not be negative");
+	}
+
+	/**
+	 * Return the maximum number of started, non-destroyed TCBs that can be in
+	 * existence.
+	 * 
+	 * @return the maximum number of TCBs.
+	 */
+	public static int getMaxThreads() {
+		return maxThreads;
 	}
 
 	/**
@@ -91,31 +151,27 @@ public final class TCB {
 
 		if (!isFirstTCB) {
 			/*
-			 * If this is not the first TCB, we have to make a new Java thread
-			 * to run it. Creating Java threads is a privileged operation.
+			 * If this is not the first TCB, we need a Java thread to run it.
+			 * We reuse one left idle by a destroyed TCB if we can, and
+			 * otherwise make a new one.
 			 */
-			tcbTarget = new Runnable() {
-				public void run() {
-					threadroot();
-				}
-			};
+			if (idleCarriers.isEmpty())
+				carrier = new Carrier();
+			else
+				carrier = idleCarriers.remove(idleCarriers.size() - 1);
 
-			privilege.doPrivileged(new Runnable() {
-				public void run() {
-					javaThread = new Thread(tcbTarget);
-				}
-			});
+			javaThread = carrier.javaThread;
 
 			/*
-			 * The Java thread hasn't yet started, but we need to get it
+			 * The carrier isn't running this TCB yet, but we need to get it
 			 * blocking in yield(). We do this by temporarily turning off the
-			 * current TCB, starting the new Java thread, and waiting for it to
-			 * wake us up from threadroot(). Once the new TCB wakes us up, it's
-			 * safe to context switch to the new TCB.
+			 * current TCB, handing this TCB to the carrier, and waiting for it
+			 * to wake us up from threadroot(). Once the new TCB wakes us up,
+			 * it's safe to context switch to the new TCB.
 			 */
 			currentTCB.running = false;
 
-			this.javaThread.start();
+			carrier.run(this);
 			currentTCB.waitForInterrupt();
 		}
 		else {
@@ -130,6 +186,29 @@ public final class TCB {
 		}
 	}
 
+	/**
+	 * Create an unstarted Java thread to run <i>target</i>, of the kind
+	 * selected by <tt>TCB.threads</tt>. Virtual threads grow their stacks as
+	 * needed, so <tt>TCB.stackSize</tt> only applies to platform threads.
+	 */
+	private static Thread newJavaThread(Runnable target) {
+		if (unstartedVirtualThread == null) {
+			if (stackSize == 0)
+				return new Thread(target);
+			else
+				return new Thread(null, target, "TCB carrier", stackSize);
+		}
+
+		try {
+			return (Thread) unstartedVirtualThread.invoke(virtualThreadBuilder,
+					target);
+		}
+		catch (Exception e) {
+			Lib.assertNotReached("could not create a virtual thread: " + e);
+			return null;
+		}
+	}
+
 	/**
 	 * Return the TCB of the currently running thread.
 	 */
@@ -255,7 +334,7 @@ public final class TCB {
 				privilege.exit(1);
 			}
 
-			runningThreads.removeElement(this);
+			runningThreads.remove(this);
 			if (runningThreads.isEmpty())
 				privilege.exit(0);
 		}
@@ -263,7 +342,7 @@ public final class TCB {
 			System.out.print("\n");
 			e.printStackTrace();
 
-			runningThreads.removeElement(this);
+			runningThreads.remove(this);
 			if (runningThreads.isEmpty())
 				privilege.exit(1);
 			else
@@ -283,6 +362,14 @@ public final class TCB {
 		waitForInterrupt();
 
 		if (done) {
+			/*
+			 * Our Java thread can run another TCB once it unwinds. It goes
+			 * back in the pool before we wake up the destroying TCB, since
+			 * that TCB might start another right away.
+			 */
+			if (carrier != null)
+				idleCarriers.add(carrier);
+
 			currentTCB.interrupt();
 			throw new ThreadDeath();
 		}
@@ -291,32 +378,32 @@ public final class TCB {
 	}
 
 	/**
-	 * Waits on the monitor bound to this TCB until its <tt>running</tt> flag is
-	 * set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a TCB
+	 * Parks the Java thread bound to this TCB until its <tt>running</tt> flag
+	 * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a TCB
 	 * needs to go to wait for its turn to run. This includes the ping-pong
 	 * process of starting and destroying TCBs, as well as in context switching
 	 * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
 	 * is updated by <tt>contextSwitch()</tt> before we get called.
+	 * 
+	 * <p>
+	 * No lock is needed: if <tt>interrupt()</tt> unparks us between checking
+	 * the flag and parking, <tt>park()</tt> returns at once. Unlike waiting on
+	 * a monitor, parking also releases a virtual thread's carrier.
 	 */
-	private synchronized void waitForInterrupt() {
-		while (!running) {
-			try {
-				wait();
-			}
-			catch (InterruptedException e) {
-			}
-		}
+	private void waitForInterrupt() {
+		while (!running)
+			LockSupport.park(this);
 	}
 
 	/**
 	 * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-	 * and signalling the monitor bound to it. Used in the ping-pong process of
-	 * starting and destroying TCBs, as well as in context switching to this
-	 * TCB.
+	 * and unparking the Java thread bound to it. Used in the ping-pong process
+	 * of starting and destroying TCBs, as well as in context switching to
+	 * this TCB.
 	 */
-	private synchronized void interrupt() {
+	private void interrupt() {
 		running = true;
-		notify();
+		LockSupport.unpark(javaThread);
 	}
 
 	private void associateThread(KThread thread) {
@@ -342,9 +429,15 @@ public final class TCB {
 
 	/**
 	 * The maximum number of started, non-destroyed TCB's that can be in
-	 * existence.
+	 * existence. Set by <tt>TCB.maxThreads</tt>.
 	 */
-	public static final int maxThreads = 250;
+	private static int maxThreads = 250;
+
+	/**
+	 * The stack size of each platform thread, in bytes, or zero for the JVM's
+	 * default. Set by <tt>TCB.stackSize</tt>.
+	 */
+	private static long stackSize = 0;
 
 	/**
 	 * A reference to the currently running TCB. It is initialized to
@@ -362,8 +455,8 @@ public final class TCB {
 	private static TCB currentTCB = null;
 
 	/**
-	 * A vector containing all <i>running</i> TCB objects. It is initialized to
-	 * an empty vector when the <tt>TCB</tt> class is loaded. TCB objects are
+	 * A set containing all <i>running</i> TCB objects. It is initialized to an
+	 * empty set when the <tt>TCB</tt> class is loaded. TCB objects are
 	 * added only in <tt>start(Runnable)</tt>, which can only be invoked once on
 	 * each TCB object. TCB objects are removed only in each of the
 	 * <tt>catch</tt> clauses of <tt>threadroot()</tt>, one of which is always
@@ -371,14 +464,27 @@ public final class TCB {
 	 * <tt>runningThreads</tt> is limited to <tt>maxThreads</tt> by
 	 * <tt>start(Runnable)</tt>. If <tt>threadroot()</tt> drops the number of
 	 * TCB objects in <tt>runningThreads</tt> to zero, Nachos exits, so once the
-	 * first TCB is created, this vector is basically never empty.
+	 * first TCB is created, this set is basically never empty.
+	 * 
+	 * <p>
+	 * A TCB removes itself while another TCB may already be running, so this
+	 * is a concurrent set, in which adding, removing and counting TCBs take
+	 * constant time.
 	 */
-	private static Vector<TCB> runningThreads = new Vector<TCB>();
+	private static Set<TCB> runningThreads = ConcurrentHashMap.newKeySet();
 
 	private static Privilege privilege;
 
 	private static KThread toBeDestroyed = null;
 
+	/**
+	 * If using virtual threads, the <tt>Thread.Builder</tt> that creates them
+	 * and its <tt>unstarted(Runnable)</tt> method. Otherwise <tt>null</tt>.
+	 */
+	private static Object virtualThreadBuilder = null;
+
+	private static Method unstartedVirtualThread = null;
+
 	/**
 	 * <tt>true</tt> if and only if this TCB is the first TCB to start, the one
 	 * started in <tt>Machine.main(String[])</tt>. Initialized by
@@ -402,8 +508,13 @@ public final class TCB {
 	 * associated Java thread ought to run ASAP. When starting or destroying a
 	 * TCB, this is temporarily true for a thread other than that of the current
 	 * TCB.
+	 * 
+	 * <p>
+	 * This flag is the token handed from one Java thread to the next, so it is
+	 * volatile: everything the waking thread did before setting it is visible
+	 * to the woken thread once it sees it set.
 	 */
-	private boolean running = false;
+	private volatile boolean running = false;
 
 	/**
 	 * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -418,7 +529,66 @@ public final class TCB {
 
 	private Runnable target;
 
-	private Runnable tcbTarget;
+	/**
+	 * The carrier running this TCB, or <tt>null</tt> for the first TCB, which
+	 * runs in the Java thread that started Nachos.
+	 */
+	private Carrier carrier = null;
+
+	/**
+	 * Carriers whose TCBs have been destroyed, waiting for another TCB to
+	 * run. Like <tt>currentTCB</tt>, this is only used by the Java thread that
+	 * currently holds the right to run.
+	 */
+	private static ArrayList<Carrier> idleCarriers = new ArrayList<Carrier>();
+
+	/**
+	 * A Java thread that runs TCBs one after another. It runs each TCB's
+	 * <tt>threadroot()</tt> until the TCB is destroyed, and then parks until
+	 * <tt>start(Runnable)</tt> hands it another.
+	 */
+	private static class Carrier implements Runnable {
+		/**
+		 * Create and start a new Java thread, which waits for a TCB to run.
+		 * Creating Java threads is a privileged operation.
+		 */
+		Carrier() {
+			final Carrier carrier = this;
+
+			privilege.doPrivileged(new Runnable() {
+				public void run() {
+					javaThread = newJavaThread(carrier);
+				}
+			});
+
+			javaThread.start();
+		}
+
+		public void run() {
+			while (true) {
+				TCB tcb;
+				while ((tcb = next) == null)
+					LockSupport.park(this);
+
+				next = null;
+				tcb.threadroot();
+			}
+		}
+
+		/**
+		 * Have this carrier run <i>tcb</i>.
+		 */
+		void run(TCB tcb) {
+			next = tcb;
+			LockSupport.unpark(javaThread);
+		}
+
+		/** The Java thread this carrier runs TCBs in. */
+		Thread javaThread;
+
+		/** The TCB to run next, set by <tt>run(TCB)</tt>. */
+		private volatile TCB next = null;
+	}
 
 	private static class TCBPrivilege implements Privilege.TCBPrivilege {
 		public void associateThread(KThread thread) {
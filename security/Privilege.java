@@ -157,6 +157,26 @@ public abstract class Privilege {
 		 * user code.
 		 */
 		public void tick(boolean inKernelMode);
+
+		/**
+		 * Advance the simulated time by several ticks at once. No interrupt
+		 * may become due before the last of them.
+		 * 
+		 * @param inKernelMode <tt>true</tt> if the ticks were spent running
+		 * kernel code, <tt>false</tt> if they were spent running MIPS user
+		 * code.
+		 * @param count the number of ticks.
+		 */
+		public void tick(boolean inKernelMode, int count);
+
+		/**
+		 * Return the number of ticks that can pass before an interrupt might
+		 * be due. Until then, only every tick must be checked.
+		 * 
+		 * @return the ticks until the next pending interrupt, or <tt>1</tt>
+		 * if every tick must be checked.
+		 */
+		public long ticksUntilDue();
 	}
 
 	/**
@@ -25,6 +25,7 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallShare		13
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -248,6 +249,21 @@ int connect(int host, int port);
  */
 int accept(int port);
 
+/* SCHEDULING SYSCALLS: share() */
+
+/**
+ * Set the current process's share of the processor to the specified number
+ * of tickets. A process with twice the tickets of another gets twice as much
+ * processor time when both are ready to run. Processes started with exec()
+ * inherit the share of their parent.
+ *
+ * Only schedulers that divide the processor by tickets support this call; with
+ * any other scheduler, or if tickets is out of range, it fails.
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int share(int tickets);
+
 #endif /* START_S */
 
 #endif /* SYSCALL_H */
@@ -0,0 +1,32 @@
+/* trapbench.c
+ *    Test program to measure how quickly the processor takes traps.
+ *
+ *    Makes a large number of cheap system calls, then touches every page
+ *    of a large array so that a kernel with demand paging takes a page
+ *    fault (or, with a TLB, a TLB miss) on each one. Time a run of the
+ *    whole machine to compare trap throughput between versions.
+ */
+
+#include "syscall.h"
+
+#define Calls	1000000	/* number of system calls to make */
+#define Pages	64	/* pages of data to touch */
+#define Passes	16	/* times to sweep the data */
+#define PageSize 1024	/* must match Processor.pageSize */
+
+int data[Pages][PageSize / sizeof(int)];
+
+int
+main()
+{
+    int i, j, sum = 0;
+
+    for (i = 0; i < Calls; i++)
+	close(-1);		/* fails at once, so only the trap is measured */
+
+    for (j = 0; j < Passes; j++)
+	for (i = 0; i < Pages; i++)
+	    sum += data[i][0]++;
+
+    return sum;
+}
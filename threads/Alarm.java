@@ -9,11 +9,9 @@ import java.util.*;
  */
 public class Alarm {
 	/**
-	 * Allocate a new Alarm. Set the machine's timer interrupt handler to this
-	 * alarm's callback.
-	 * 
-	 * <p>
-	 * <b>Note</b>: Nachos will not function correctly with more than one alarm.
+	 * A thread waiting in <tt>waitUntil()</tt>, and the time at which to wake
+	 * it. A thread can allocate one with <tt>newHandle()</tt> and wait with it,
+	 * so that other threads can use it to wake that thread early.
 	 */
 	public class Pair {
 		KThread thread;
@@ -28,11 +26,34 @@ public class Alarm {
 		public KThread getThread(){
 			return this.thread;
 		}
+
+		/** The order in which this entry was added to the heap. */
+		long sequence;
+
+		/** The position of this entry in the heap, or -1 if not waiting. */
+		int index = -1;
+
+		/** Whether the last wait with this entry was cancelled. */
+		boolean cancelled = false;
 	}
 
-	private ArrayList<Pair> waitQueue = new ArrayList<Pair>();
-	//Lock waitLock = new Lock();
-	//private Iterator<Pair> it = waitQueue.iterator();
+	/**
+	 * The waiting threads, as a binary min-heap ordered by wake time, and
+	 * then by the order in which they started waiting.
+	 */
+	private Pair[] waitQueue = new Pair[16];
+
+	private int numWaiting = 0;
+
+	private long numWaits = 0;
+
+	/**
+	 * Allocate a new Alarm. Set the machine's timer interrupt handler to this
+	 * alarm's callback.
+	 * 
+	 * <p>
+	 * <b>Note</b>: Nachos will not function correctly with more than one alarm.
+	 */
 	public Alarm() {
 		Machine.timer().setInterruptHandler(new Runnable() {
 			public void run() {
@@ -43,20 +64,18 @@ public class Alarm {
 
 	/**
 	 * The timer interrupt handler. This is called by the machine's timer
-	 * periodically (approximately every 500 clock ticks). Causes the current
-	 * thread to yield, forcing a context switch if there is another thread that
+	 * periodically (approximately every 500 clock ticks). Wakes up the threads
+	 * whose time has passed, earliest first, then causes the current thread
+	 * to yield, forcing a context switch if there is another thread that
 	 * should be run.
 	 */
 	public void timerInterrupt() {
 		boolean status = Machine.interrupt().disable();
-		int i= 0;
-		while(i<waitQueue.size()){
-			if(waitQueue.get(i).getTime() < Machine.timer().getTime()){
-				waitQueue.get(i).getThread().ready();
-				waitQueue.remove(i);	
-			} else{
-				i++;
-			}
+		long time = Machine.timer().getTime();
+		while (numWaiting > 0 && waitQueue[0].getTime() < time) {
+			Pair first = waitQueue[0];
+			remove(first);
+			first.getThread().ready();
 		}
 		Machine.interrupt().restore(status);
 		KThread.currentThread().yield();
@@ -76,14 +95,131 @@ public class Alarm {
 	 * @see nachos.machine.Timer#getTime()
 	 */
 	public void waitUntil(long x) {
-		// for now, cheat just to get something working (busy waiting is bad)
+		waitUntil(x, newHandle());
+	}
+
+	/**
+	 * Allocate a handle for the current thread to wait with, which other
+	 * threads can pass to <tt>cancel()</tt> to wake it early.
+	 * 
+	 * @return a new handle for the current thread.
+	 */
+	public Pair newHandle() {
+		return new Pair(KThread.currentThread(), 0);
+	}
+
+	/**
+	 * Like <tt>waitUntil(x)</tt>, but another thread may wake the current
+	 * thread early by passing the same handle to <tt>cancel()</tt>.
+	 * 
+	 * @param x the minimum number of clock ticks to wait.
+	 * @param handle a handle allocated by the current thread with
+	 * <tt>newHandle()</tt>.
+	 * @return <tt>true</tt> if the time passed, or <tt>false</tt> if the wait
+	 * was cancelled.
+	 */
+	public boolean waitUntil(long x, Pair handle) {
+		Lib.assertTrue(handle.getThread() == KThread.currentThread());
+
 		boolean status = Machine.interrupt().disable();
-		long wakeTime = Machine.timer().getTime() + x;
-		Pair temp = new Pair(KThread.currentThread(), wakeTime);
-		this.waitQueue.add(temp);
-		KThread.currentThread().sleep();
+		handle.time_to_wakeUp = Machine.timer().getTime() + x;
+		handle.cancelled = false;
+		add(handle);
+		KThread.sleep();
 		Machine.interrupt().restore(status);
-		
+
+		return !handle.cancelled;
+	}
+
+	/**
+	 * Wake up the thread waiting with the specified handle now, instead of
+	 * when its time passes.
+	 * 
+	 * @param handle the handle the thread is waiting with.
+	 * @return <tt>true</tt> if the thread was waiting, or <tt>false</tt> if
+	 * it was already woken up.
+	 */
+	public boolean cancel(Pair handle) {
+		boolean status = Machine.interrupt().disable();
+		boolean waiting = (handle.index >= 0);
+		if (waiting) {
+			remove(handle);
+			handle.cancelled = true;
+			handle.getThread().ready();
+		}
+		Machine.interrupt().restore(status);
+
+		return waiting;
+	}
+
+	private void add(Pair entry) {
+		Lib.assertTrue(entry.index < 0);
+
+		if (numWaiting == waitQueue.length)
+			waitQueue = Arrays.copyOf(waitQueue, 2 * numWaiting);
+
+		entry.sequence = numWaits++;
+		siftUp(entry, numWaiting++);
+	}
+
+	private void remove(Pair entry) {
+		int index = entry.index;
+		Pair last = waitQueue[--numWaiting];
+		waitQueue[numWaiting] = null;
+		entry.index = -1;
+
+		if (last != entry) {
+			siftDown(last, index);
+			if (last.index == index)
+				siftUp(last, index);
+		}
+	}
+
+	/**
+	 * Put an entry at <i>index</i>, or above it if it comes before its
+	 * parents.
+	 */
+	private void siftUp(Pair entry, int index) {
+		while (index > 0) {
+			int parent = (index - 1) / 2;
+			if (!before(entry, waitQueue[parent]))
+				break;
+			place(waitQueue[parent], index);
+			index = parent;
+		}
+		place(entry, index);
+	}
+
+	/**
+	 * Put an entry at <i>index</i>, or below it if one of its children comes
+	 * before it.
+	 */
+	private void siftDown(Pair entry, int index) {
+		while (true) {
+			int child = 2 * index + 1;
+			if (child >= numWaiting)
+				break;
+			if (child + 1 < numWaiting
+					&& before(waitQueue[child + 1], waitQueue[child]))
+				child++;
+			if (!before(waitQueue[child], entry))
+				break;
+			place(waitQueue[child], index);
+			index = child;
+		}
+		place(entry, index);
+	}
+
+	private void place(Pair entry, int index) {
+		waitQueue[index] = entry;
+		entry.index = index;
+	}
+
+	private static boolean before(Pair a, Pair b) {
+		if (a.time_to_wakeUp != b.time_to_wakeUp)
+			return a.time_to_wakeUp < b.time_to_wakeUp;
+		else
+			return a.sequence < b.sequence;
 	}
 
 	 public static void alarmTest1() {
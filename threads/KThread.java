@@ -2,6 +2,11 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+
 /**
  * A KThread is a thread that can be used to execute Nachos kernel code. Nachos
  * allows multiple threads to run concurrently.
@@ -64,6 +69,7 @@ public class KThread {
             currentThread = this;
             tcb = TCB.currentTCB();
             name = "main";
+            liveThreads.add(this);
             restoreState();
             
             createIdleThread();
@@ -154,6 +160,9 @@ public class KThread {
         
         boolean intStatus = Machine.interrupt().disable();
         
+        forkTime = Machine.timer().getTime();
+        liveThreads.add(this);
+        
         tcb.start(new Runnable() {
             public void run() {
                 runThread();
@@ -200,6 +209,22 @@ public class KThread {
         
         Machine.autoGrader().finishingCurrentThread();
         
+        if (currentThread.forkTime >= 0) {
+            long turnaround = Machine.timer().getTime() - currentThread.forkTime;
+            
+            if (Lib.test(dbgThread))
+                Lib.debug(dbgThread, "Thread " + currentThread.toString()
+                          + ": response " + currentThread.responseTime
+                          + ", turnaround " + turnaround);
+            
+            Machine.kernelStats().numThreadsFinished++;
+            Machine.kernelStats().turnaroundTicks += turnaround;
+        }
+        
+        liveThreads.remove(currentThread);
+        currentThread.accountRunning();
+        addTopThread(currentThread);
+        
         Lib.assertTrue(toBeDestroyed == null);
         toBeDestroyed = currentThread;
         
@@ -232,12 +257,14 @@ public class KThread {
      * called with interrupts disabled.
      */
     public static void yield() {
-        Lib.debug(dbgThread, "Yielding thread: " + currentThread.toString());
+        if (Lib.test(dbgThread))
+            Lib.debug(dbgThread, "Yielding thread: " + currentThread.toString());
         
         Lib.assertTrue(currentThread.status == statusRunning);
         
         boolean intStatus = Machine.interrupt().disable();
         
+        ThreadedKernel.scheduler.stopRunning(currentThread);
         currentThread.ready();
         
         runNextThread();
@@ -257,13 +284,17 @@ public class KThread {
      * scheduled this thread to be destroyed by the next thread to run.
      */
     public static void sleep() {
-        Lib.debug(dbgThread, "Sleeping thread: " + currentThread.toString());
+        if (Lib.test(dbgThread))
+            Lib.debug(dbgThread, "Sleeping thread: " + currentThread.toString());
         
         Lib.assertTrue(Machine.interrupt().disabled());
         
-        if (currentThread.status != statusFinished)
+        if (currentThread.status != statusFinished) {
             currentThread.status = statusBlocked;
+            currentThread.stateTime = Machine.timer().getTime();
+        }
         
+        ThreadedKernel.scheduler.stopRunning(currentThread);
         runNextThread();
     }
     
@@ -272,11 +303,17 @@ public class KThread {
      * ready queue.
      */
     public void ready() {
-        Lib.debug(dbgThread, "Ready thread: " + toString());
+        if (Lib.test(dbgThread))
+            Lib.debug(dbgThread, "Ready thread: " + toString());
         
         Lib.assertTrue(Machine.interrupt().disabled());
         Lib.assertTrue(status != statusReady);
         
+        long time = Machine.timer().getTime();
+        if (status == statusBlocked)
+            blockedTicks += time - stateTime;
+        stateTime = time;
+        
         status = statusReady;
         if (this != idleThread)
             readyQueue.waitForAccess(this);
@@ -372,10 +409,12 @@ public class KThread {
         
         Machine.yield();
         
+        currentThread.accountRunning();
         currentThread.saveState();
         
-        Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
-                  + " to: " + toString());
+        if (Lib.test(dbgThread))
+            Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
+                      + " to: " + toString());
         
         currentThread = this;
         
@@ -389,7 +428,8 @@ public class KThread {
      * <tt>statusRunning</tt> and check <tt>toBeDestroyed</tt>.
      */
     protected void restoreState() {
-        Lib.debug(dbgThread, "Running thread: " + currentThread.toString());
+        if (Lib.test(dbgThread))
+            Lib.debug(dbgThread, "Running thread: " + currentThread.toString());
         
         Lib.assertTrue(Machine.interrupt().disabled());
         Lib.assertTrue(this == currentThread);
@@ -397,8 +437,23 @@ public class KThread {
         
         Machine.autoGrader().runningThread(this);
         
+        if (status == statusReady && this != idleThread) {
+            long wait = Machine.timer().getTime() - stateTime;
+            readyTicks += wait;
+            readyWaits[64 - Long.numberOfLeadingZeros(wait)]++;
+        }
+        runStartUserTicks = Machine.kernelStats().getUserTicks();
+        runStartKernelTicks = Machine.kernelStats().getKernelTicks();
+        
         status = statusRunning;
         
+        if (responseTime < 0 && forkTime >= 0 && this != idleThread) {
+            responseTime = Machine.timer().getTime() - forkTime;
+            
+            Machine.kernelStats().numThreadsStarted++;
+            Machine.kernelStats().responseTicks += responseTime;
+        }
+        
         if (toBeDestroyed != null) {
             toBeDestroyed.tcb.destroy();
             toBeDestroyed.tcb = null;
@@ -406,6 +461,130 @@ public class KThread {
         }
     }
     
+    /**
+     * Add the user and kernel ticks since this thread last started running to
+     * its totals. Called when the thread gives up the processor, or finishes.
+     */
+    private void accountRunning() {
+        KernelStats stats = Machine.kernelStats();
+        
+        userTicks += stats.getUserTicks() - runStartUserTicks;
+        kernelTicks += stats.getKernelTicks() - runStartKernelTicks;
+        runStartUserTicks = stats.getUserTicks();
+        runStartKernelTicks = stats.getKernelTicks();
+    }
+    
+    /**
+     * Get the number of ticks this thread has spent running in user mode. For
+     * the current thread, this does not include the time since it last started
+     * running.
+     *
+     * @return the user ticks of this thread.
+     */
+    public long getUserTicks() {
+        return userTicks;
+    }
+    
+    /**
+     * Get the number of ticks this thread has spent running in kernel mode.
+     * For the current thread, this does not include the time since it last
+     * started running.
+     *
+     * @return the kernel ticks of this thread.
+     */
+    public long getKernelTicks() {
+        return kernelTicks;
+    }
+    
+    /**
+     * Get the number of ticks this thread has spent on the ready queue
+     * waiting to run.
+     *
+     * @return the ready ticks of this thread.
+     */
+    public long getReadyTicks() {
+        return readyTicks;
+    }
+    
+    /**
+     * Get the number of ticks this thread has spent blocked.
+     *
+     * @return the blocked ticks of this thread.
+     */
+    public long getBlockedTicks() {
+        return blockedTicks;
+    }
+    
+    /**
+     * Remember a finished thread if it is among the <tt>numTopThreads</tt>
+     * finished threads that ran the longest.
+     */
+    private static void addTopThread(KThread thread) {
+        int i = topThreads.size();
+        while (i > 0 && compareCPU(thread, topThreads.get(i - 1)) < 0)
+            i--;
+        
+        if (i < numTopThreads) {
+            topThreads.add(i, thread);
+            if (topThreads.size() > numTopThreads)
+                topThreads.remove(numTopThreads);
+        }
+    }
+    
+    /**
+     * Order threads by the time they have spent running, longest first.
+     */
+    private static int compareCPU(KThread a, KThread b) {
+        long cpuA = a.userTicks + a.kernelTicks;
+        long cpuB = b.userTicks + b.kernelTicks;
+        
+        if (cpuA != cpuB)
+            return cpuA > cpuB ? -1 : 1;
+        else
+            return a.compareTo(b);
+    }
+    
+    /**
+     * Print the threads, finished or not, that have spent the most time
+     * running, with how long each has run in user and kernel mode, waited on
+     * the ready queue, and been blocked. Then print a histogram of how long
+     * threads waited on the ready queue before running, in powers of two
+     * ticks. Called when Nachos halts.
+     */
+    public static void printStats() {
+        if (currentThread != null)
+            currentThread.accountRunning();
+        
+        ArrayList<KThread> top = new ArrayList<KThread>(topThreads);
+        for (KThread thread : liveThreads)
+            top.add(thread);
+        
+        Collections.sort(top, new Comparator<KThread>() {
+            public int compare(KThread a, KThread b) {
+                return compareCPU(a, b);
+            }
+        });
+        
+        for (int i = 0; i < top.size() && i < numTopThreads; i++) {
+            KThread thread = top.get(i);
+            System.out.println("Thread " + thread + ": user "
+                               + thread.userTicks + ", kernel "
+                               + thread.kernelTicks + ", ready "
+                               + thread.readyTicks + ", blocked "
+                               + thread.blockedTicks);
+        }
+        
+        for (int i = 0; i < readyWaits.length; i++) {
+            if (readyWaits[i] == 0)
+                continue;
+            
+            String range = (i <= 1) ? Integer.toString(i)
+                : (1L << (i - 1)) + "-" + ((1L << i) - 1);
+            System.out.println("Ready wait " + range + " ticks: "
+                               + readyWaits[i]);
+        }
+    }
+    
     /**
      * Prepare this thread to give up the processor. Kernel threads do not need
      * to do anything here.
@@ -512,6 +691,44 @@ public class KThread {
     
     private static KThread idleThread = null;
     
+    /**
+     * The time at which this thread was forked, or -1 if it was not forked.
+     */
+    private long forkTime = -1;
+    
+    /**
+     * The time this thread waited between being forked and first running, or
+     * -1 if it has not run yet.
+     */
+    private long responseTime = -1;
+    
+    /** Ticks this thread has run in user mode and in kernel mode. */
+    private long userTicks = 0, kernelTicks = 0;
+    
+    /** Ticks this thread has spent on the ready queue, and blocked. */
+    private long readyTicks = 0, blockedTicks = 0;
+    
+    /** The time at which this thread last became ready or blocked. */
+    private long stateTime = 0;
+    
+    /** The machine's user and kernel ticks when this thread last ran. */
+    private long runStartUserTicks = 0, runStartKernelTicks = 0;
+    
+    /** The number of threads <tt>printStats()</tt> prints. */
+    private static final int numTopThreads = 8;
+    
+    /** Threads that have been forked, and have not finished. */
+    private static HashSet<KThread> liveThreads = new HashSet<KThread>();
+    
+    /** The finished threads that ran the longest, longest first. */
+    private static ArrayList<KThread> topThreads = new ArrayList<KThread>();
+    
+    /**
+     * The number of times a thread waited on the ready queue for 0 ticks, 1
+     * tick, 2 to 3 ticks, 4 to 7 ticks, and so on.
+     */
+    private static long[] readyWaits = new long[65];
+    
     private KThread tempThread = null;  
     
     private boolean awake = true;
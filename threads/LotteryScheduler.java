@@ -2,8 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
 import java.util.Iterator;
 
 /**
@@ -25,6 +23,12 @@ import java.util.Iterator;
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking the
  * maximum).
+ * 
+ * <p>
+ * Each queue keeps the effective ticket counts of its waiting threads in a
+ * Fenwick tree, one slot per thread, so holding a lottery, adding a thread,
+ * removing one, and changing its tickets all take time logarithmic in the
+ * number of threads waiting, however many tickets they hold.
  */
 public class LotteryScheduler extends PriorityScheduler {
 	/**
@@ -41,7 +45,288 @@ public class LotteryScheduler extends PriorityScheduler {
 	 * @return a new lottery thread queue.
 	 */
 	public ThreadQueue newThreadQueue(boolean transferPriority) {
-		// implement me
-		return null;
+		return new LotteryQueue(transferPriority);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= priorityMinimum
+				&& priority <= priorityMaximum);
+
+		getThreadState(thread).setPriority(priority);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMaximum)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMinimum)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * The default number of tickets for a new thread.
+	 */
+	public static final int priorityDefault = 1;
+
+	/**
+	 * The minimum number of tickets that a thread can have.
+	 */
+	public static final int priorityMinimum = 1;
+
+	/**
+	 * The maximum number of tickets that a thread can have.
+	 */
+	public static final int priorityMaximum = Integer.MAX_VALUE;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 * 
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new LotteryThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+	 * Slot <i>i</i> of <tt>waiting</tt> holds a waiting thread, or
+	 * <tt>null</tt>, and <tt>tree</tt> is a Fenwick tree over the effective
+	 * tickets of the threads in those slots.
+	 */
+	protected class LotteryQueue extends PriorityQueue {
+		LotteryQueue(boolean transferPriority) {
+			super(transferPriority, null);
+		}
+
+		/**
+		 * Draw a winning ticket among all the waiting threads' tickets, and
+		 * return the thread holding it, without removing it.
+		 * 
+		 * @return the winning thread, or <tt>null</tt> if none are waiting.
+		 */
+		protected ThreadState pickNextThread() {
+			if (numWaiting == 0)
+				return null;
+
+			long ticket = Math.min((long) (Lib.random() * totalTickets),
+					totalTickets - 1);
+
+			// find the slot whose range of tickets contains the winner
+			int slot = 0;
+			int step = Integer.highestOneBit(capacity);
+			for (; step > 0; step >>= 1) {
+				if (slot + step <= capacity && tree[slot + step] <= ticket) {
+					slot += step;
+					ticket -= tree[slot];
+				}
+			}
+
+			return waiting[slot + 1];
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int slot = 1; slot <= capacity; slot++) {
+				LotteryThreadState state = waiting[slot];
+				if (state != null)
+					System.out.print(state.thread + " (" + state.tickets + ") ");
+			}
+		}
+
+		/**
+		 * Return the tickets this queue transfers to the thread holding it.
+		 * 
+		 * @return the effective tickets of all waiting threads, or 0 if no
+		 * tickets are transferred.
+		 */
+		protected long getTicketDonation() {
+			return transferPriority ? totalTickets : 0;
+		}
+
+		/**
+		 * Give a waiting thread a slot, and add its effective tickets to the
+		 * tree.
+		 * 
+		 * @param state the thread to add.
+		 */
+		protected void add(ThreadState state) {
+			LotteryThreadState lotteryState = (LotteryThreadState) state;
+
+			if (numFree == 0)
+				grow();
+
+			int slot = freeSlots[--numFree];
+			waiting[slot] = lotteryState;
+			lotteryState.slot = slot;
+
+			addTickets(slot, lotteryState.tickets);
+			numWaiting++;
+		}
+
+		/**
+		 * Take a waiting thread's tickets out of the tree, and free its slot.
+		 * 
+		 * @param state the thread to remove.
+		 */
+		protected void remove(ThreadState state) {
+			LotteryThreadState lotteryState = (LotteryThreadState) state;
+			int slot = lotteryState.slot;
+
+			Lib.assertTrue(waiting[slot] == lotteryState);
+
+			addTickets(slot, -lotteryState.tickets);
+			waiting[slot] = null;
+			freeSlots[numFree++] = slot;
+			numWaiting--;
+		}
+
+		private void addTickets(int slot, long tickets) {
+			totalTickets += tickets;
+
+			for (; slot <= capacity; slot += slot & -slot)
+				tree[slot] += tickets;
+		}
+
+		/**
+		 * Double the number of slots, and rebuild the tree in linear time.
+		 */
+		private void grow() {
+			int oldCapacity = capacity;
+			capacity = Math.max(4, 2 * capacity);
+
+			LotteryThreadState[] oldWaiting = waiting;
+			waiting = new LotteryThreadState[capacity + 1];
+			System.arraycopy(oldWaiting, 0, waiting, 0, oldCapacity + 1);
+
+			tree = new long[capacity + 1];
+			for (int slot = 1; slot <= capacity; slot++) {
+				if (waiting[slot] != null)
+					tree[slot] += waiting[slot].tickets;
+
+				int parent = slot + (slot & -slot);
+				if (parent <= capacity)
+					tree[parent] += tree[slot];
+			}
+
+			freeSlots = new int[capacity];
+			numFree = 0;
+			for (int slot = capacity; slot > oldCapacity; slot--)
+				freeSlots[numFree++] = slot;
+		}
+
+		/** The number of slots. */
+		private int capacity = 0;
+
+		/** The thread in each slot, indexed from 1. */
+		private LotteryThreadState[] waiting = new LotteryThreadState[1];
+
+		/** The Fenwick tree over the tickets of the threads in each slot. */
+		private long[] tree = new long[1];
+
+		/** Slots with no thread in them, used as a stack. */
+		private int[] freeSlots = new int[0];
+
+		private int numFree = 0;
+
+		private int numWaiting = 0;
+
+		/** The effective tickets of all waiting threads. */
+		private long totalTickets = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread in a lottery scheduler. A thread's
+	 * effective tickets are its own plus those of every thread waiting on a
+	 * queue it holds, and so on, which can add up to far more than fit in an
+	 * <tt>int</tt>.
+	 */
+	protected class LotteryThreadState extends ThreadState {
+		/**
+		 * Allocate a new <tt>LotteryThreadState</tt> object and associate it
+		 * with the specified thread.
+		 * 
+		 * @param thread the thread this state belongs to.
+		 */
+		public LotteryThreadState(KThread thread) {
+			super(thread);
+		}
+
+		/**
+		 * Return the effective tickets of the associated thread, or
+		 * <tt>Integer.MAX_VALUE</tt> if they do not fit in an <tt>int</tt>.
+		 * 
+		 * @return the effective tickets of the associated thread.
+		 */
+		public int getEffectivePriority() {
+			return (int) Math.min(tickets, Integer.MAX_VALUE);
+		}
+
+		/**
+		 * Recompute the effective tickets of the associated thread. If they
+		 * change, update the tree of the queue it is waiting on, and pass the
+		 * change on to that queue's holder.
+		 */
+		protected void updateEffectivePriority() {
+			long effective = priority;
+			for (Iterator<PriorityQueue> i = held.iterator(); i.hasNext();)
+				effective += ((LotteryQueue) i.next()).getTicketDonation();
+
+			if (effective == tickets)
+				return;
+
+			if (waitingOn == null) {
+				tickets = effective;
+				return;
+			}
+
+			waitingOn.remove(this);
+			tickets = effective;
+			waitingOn.add(this);
+
+			waitingOn.donationChanged();
+		}
+
+		/*
+		 * These are left to their default values on purpose: the superclass
+		 * constructor sets the priority, and so the tickets, before any field
+		 * initializers here would run.
+		 */
+
+		/** The effective tickets of the associated thread. */
+		protected long tickets;
+
+		/** The slot the associated thread has in <tt>waitingOn</tt>. */
+		protected int slot;
 	}
 }
@@ -0,0 +1,345 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+
+/**
+ * A scheduler that chooses threads using a multilevel feedback queue.
+ *
+ * <p>
+ * Every thread is on one of a number of levels, level 0 being the highest.
+ * Each queue chooses a thread from the highest level that has any threads
+ * waiting on it, and among those the one that has waited the longest. New
+ * threads start on level 0.
+ *
+ * <p>
+ * A thread may use up to <tt>quantum &lt;&lt; level</tt> ticks of the
+ * processor on a level, counting every time it ran there, before it is moved
+ * down a level. A thread is charged whenever it gives up the processor,
+ * whether it yields or blocks. A thread that is woken up by another thread,
+ * after blocking on a semaphore, a lock, a condition variable, an alarm, or
+ * some I/O device, is moved up a level, unless it used up its allotment just
+ * before it blocked, so that interactive threads stay ahead of threads that
+ * only compute.
+ *
+ * <p>
+ * So that threads on the lower levels do not starve, every
+ * <tt>boostInterval</tt> ticks all threads are moved back to level 0. This is
+ * done lazily: a thread is moved the next time it waits for access, and a
+ * queue moves all of its waiting threads the next time it chooses one.
+ *
+ * <p>
+ * The scheduler is configured with <tt>MLFQScheduler.levels</tt>,
+ * <tt>MLFQScheduler.quantum</tt>, and <tt>MLFQScheduler.boostInterval</tt>.
+ * It does not transfer priority.
+ */
+public class MLFQScheduler extends Scheduler {
+	/**
+	 * Allocate a new multilevel feedback queue scheduler.
+	 */
+	public MLFQScheduler() {
+		levels = Config.getInteger("MLFQScheduler.levels", 3);
+		quantum = Config.getInteger("MLFQScheduler.quantum", Stats.TimerTicks);
+		boostInterval = Config.getInteger("MLFQScheduler.boostInterval",
+				quantum * 50);
+
+		Lib.assertTrue(levels > 0 && quantum > 0 && boostInterval > 0);
+	}
+
+	/**
+	 * Allocate a new multilevel feedback queue.
+	 *
+	 * @param transferPriority ignored. This scheduler does not transfer
+	 * priority.
+	 * @return a new multilevel feedback queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new MLFQQueue();
+	}
+
+	/**
+	 * Return the priority of the specified thread, which is higher the higher
+	 * the level the thread is on, from <tt>levels - 1</tt> for level 0 down to
+	 * 0 for the lowest level.
+	 *
+	 * @param thread the thread whose priority to return.
+	 * @return the priority of the specified thread.
+	 */
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return levels - 1 - getThreadState(thread).level;
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return getPriority(thread);
+	}
+
+	/**
+	 * Charge the specified thread for the time it has run since it was last
+	 * chosen, so that threads that block without waiting on a queue, in
+	 * <tt>Alarm.waitUntil()</tt> for instance, are charged as well.
+	 *
+	 * @param thread the current thread.
+	 */
+	public void stopRunning(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		getThreadState(thread).charge();
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * Return the number of boosts there have been so far.
+	 *
+	 * @return the current boost epoch.
+	 */
+	protected long boostEpoch() {
+		return Machine.timer().getTime() / boostInterval;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> with a FIFO list of waiting threads for each
+	 * level.
+	 */
+	protected class MLFQQueue extends ThreadQueue {
+		MLFQQueue() {
+			waitQueue = new ArrayList<LinkedList<ThreadState>>(levels);
+			for (int i = 0; i < levels; i++)
+				waitQueue.add(new LinkedList<ThreadState>());
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			long epoch = boostEpoch();
+			state.boost(epoch);
+
+			// charge it before it is queued by level, rather than leaving it
+			// to stopRunning()
+			if (thread == KThread.currentThread())
+				state.charge();
+			else
+				state.wake();
+
+			if (epoch > this.epoch)
+				boost(epoch);
+
+			state.waitSequence = numWaits++;
+			waitQueue.get(state.level).add(state);
+			numWaiting++;
+		}
+
+		/**
+		 * Remove the first thread on the highest level that has any. The
+		 * thread's time on the processor is counted from now on.
+		 *
+		 * @return the chosen thread, or <tt>null</tt> if the queue is empty.
+		 */
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (numWaiting == 0)
+				return null;
+
+			long epoch = boostEpoch();
+			if (epoch > this.epoch)
+				boost(epoch);
+
+			for (int i = 0; i < levels; i++) {
+				if (!waitQueue.get(i).isEmpty()) {
+					ThreadState state = waitQueue.get(i).removeFirst();
+					numWaiting--;
+
+					state.dispatchedAt = Machine.timer().getTime();
+					return state.thread;
+				}
+			}
+
+			Lib.assertNotReached();
+			return null;
+		}
+
+		/**
+		 * The specified thread has received exclusive access, without using
+		 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
+		 * threads are waiting for access.
+		 */
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			Lib.assertTrue(numWaiting == 0);
+		}
+
+		/**
+		 * Print out the contents of the queue, one level at a time.
+		 */
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < levels; i++) {
+				System.out.print("[" + i + "] ");
+				for (ThreadState state : waitQueue.get(i))
+					System.out.print(state.thread + " ");
+			}
+		}
+
+		/**
+		 * Move every waiting thread to level 0, keeping them in the order in
+		 * which they started waiting.
+		 *
+		 * @param epoch the current boost epoch.
+		 */
+		private void boost(long epoch) {
+			this.epoch = epoch;
+
+			if (numWaiting == waitQueue.get(0).size())
+				return;
+
+			ArrayList<ThreadState> all = new ArrayList<ThreadState>(numWaiting);
+			for (int i = 0; i < levels; i++) {
+				all.addAll(waitQueue.get(i));
+				waitQueue.get(i).clear();
+			}
+
+			Collections.sort(all, new Comparator<ThreadState>() {
+				public int compare(ThreadState a, ThreadState b) {
+					return Long.compare(a.waitSequence, b.waitSequence);
+				}
+			});
+
+			for (ThreadState state : all)
+				state.boost(epoch);
+
+			waitQueue.get(0).addAll(all);
+		}
+
+		/** The threads waiting on each level. */
+		private ArrayList<LinkedList<ThreadState>> waitQueue;
+
+		private int numWaiting = 0;
+
+		/** The boost epoch this queue last moved its threads up in. */
+		private long epoch = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread in a multilevel feedback queue
+	 * scheduler.
+	 */
+	protected class ThreadState {
+		/**
+		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+		 * specified thread. The thread starts on level 0.
+		 *
+		 * @param thread the thread this state belongs to.
+		 */
+		public ThreadState(KThread thread) {
+			this.thread = thread;
+			this.epoch = boostEpoch();
+			this.dispatchedAt = Machine.timer().getTime();
+		}
+
+		/**
+		 * Count the time the associated thread has run since it was last
+		 * charged, and move it down a level if that uses up its allotment on
+		 * this level. Charging it again before it runs again does nothing.
+		 */
+		void charge() {
+			long now = Machine.timer().getTime();
+			if (now == dispatchedAt)
+				return;
+
+			used += now - dispatchedAt;
+			dispatchedAt = now;
+			usedUp = false;
+
+			if (used >= (long) quantum << level) {
+				if (level < levels - 1)
+					level++;
+				used = 0;
+				usedUp = true;
+			}
+		}
+
+		/**
+		 * The associated thread was woken up by another thread. Move it up a
+		 * level, with a fresh allotment there, unless it used up its
+		 * allotment before it blocked. On level 0 it keeps what it has used,
+		 * so that a thread cannot stay there by blocking just before its
+		 * allotment runs out.
+		 */
+		void wake() {
+			if (usedUp)
+				usedUp = false;
+			else if (level > 0) {
+				level--;
+				used = 0;
+			}
+		}
+
+		/**
+		 * Move the associated thread to level 0 if there has been a boost
+		 * since it was last moved there.
+		 *
+		 * @param epoch the current boost epoch.
+		 */
+		void boost(long epoch) {
+			if (epoch > this.epoch) {
+				this.epoch = epoch;
+				level = 0;
+				used = 0;
+			}
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		/** The level the associated thread is on. */
+		protected int level = 0;
+
+		/** The ticks the associated thread has run on this level. */
+		protected long used = 0;
+
+		/** The time at which the associated thread was last chosen or charged. */
+		protected long dispatchedAt;
+
+		/** Whether the associated thread was last charged its allotment. */
+		protected boolean usedUp = false;
+
+		/** The boost epoch the associated thread was last moved up in. */
+		protected long epoch;
+
+		/** The order in which the associated thread started waiting. */
+		protected long waitSequence;
+	}
+
+	/** The number of levels. */
+	protected int levels;
+
+	/** The ticks a thread may use on level 0 before it is moved down. */
+	protected int quantum;
+
+	/** The ticks between moving every thread back to level 0. */
+	protected int boostInterval;
+
+	/** The number of times any thread has started waiting. */
+	private long numWaits = 0;
+}
@@ -25,6 +25,14 @@ import java.util.Iterator;
  * <p>
  * A priority scheduler must partially solve the priority inversion problem; in
  * particular, priority must be donated through locks, and through joins.
+ * 
+ * <p>
+ * Each queue keeps its waiting threads sorted by effective priority, and then
+ * by how long they have waited, so adding, removing and choosing a thread take
+ * time logarithmic in the number waiting. Each thread caches its effective
+ * priority. When it changes, the thread is moved within the queue it waits
+ * on, and the thread holding that queue recomputes its own, and so on along
+ * the chain of donations until some effective priority stays the same.
  */
 public class PriorityScheduler extends Scheduler {
 	/**
@@ -130,7 +138,24 @@ public class PriorityScheduler extends Scheduler {
 	 */
 	protected class PriorityQueue extends ThreadQueue {
 		PriorityQueue(boolean transferPriority) {
+			this(transferPriority, new TreeSet<ThreadState>());
+		}
+
+		/**
+		 * Allocate a queue that keeps its waiting threads in
+		 * <i>waitQueue</i>. A subclass that keeps them some other way passes
+		 * <tt>null</tt>, and overrides <tt>pickNextThread()</tt>,
+		 * <tt>print()</tt>, <tt>add()</tt>, and <tt>remove()</tt>, and
+		 * <tt>getDonation()</tt> unless its threads never call it.
+		 * 
+		 * @param transferPriority <tt>true</tt> if this queue should transfer
+		 * priority from waiting threads to the owning thread.
+		 * @param waitQueue the set to keep the waiting threads in.
+		 */
+		protected PriorityQueue(boolean transferPriority,
+				TreeSet<ThreadState> waitQueue) {
 			this.transferPriority = transferPriority;
+			this.waitQueue = waitQueue;
 		}
 
 		public void waitForAccess(KThread thread) {
@@ -145,8 +170,18 @@ public class PriorityScheduler extends Scheduler {
 
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me
-			return null;
+
+			ThreadState next = pickNextThread();
+			if (next == null) {
+				setHolder(null);
+				return null;
+			}
+
+			remove(next);
+			next.waitingOn = null;
+			next.acquire(this);
+
+			return next.thread;
 		}
 
 		/**
@@ -156,13 +191,85 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the next thread that <tt>nextThread()</tt> would return.
 		 */
 		protected ThreadState pickNextThread() {
-			// implement me
-			return null;
+			if (waitQueue.isEmpty())
+				return null;
+
+			return waitQueue.first();
 		}
 
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me (if you want)
+
+			for (Iterator<ThreadState> i = waitQueue.iterator(); i.hasNext();) {
+				ThreadState state = i.next();
+				System.out.print(state.thread + " ("
+						+ state.effectivePriority + ") ");
+			}
+		}
+
+		/**
+		 * Return the priority this queue donates to the thread holding it.
+		 * 
+		 * @return the highest effective priority of any waiting thread, or
+		 * <tt>priorityMinimum</tt> if no priority is transferred.
+		 */
+		protected int getDonation() {
+			if (!transferPriority || waitQueue.isEmpty())
+				return priorityMinimum;
+
+			return waitQueue.first().effectivePriority;
+		}
+
+		/**
+		 * Add a waiting thread, sorted by its current effective priority.
+		 * 
+		 * @param state the thread to add.
+		 */
+		protected void add(ThreadState state) {
+			waitQueue.add(state);
+		}
+
+		/**
+		 * Remove a waiting thread. It must be removed before its effective
+		 * priority changes, and added again afterwards.
+		 * 
+		 * @param state the thread to remove.
+		 */
+		protected void remove(ThreadState state) {
+			waitQueue.remove(state);
+		}
+
+		/**
+		 * Record which thread has access to the resource guarded by this
+		 * queue, and update the effective priorities of the old and new
+		 * holders. Only matters if this queue transfers priority.
+		 * 
+		 * @param state the new holder, or <tt>null</tt>.
+		 */
+		protected void setHolder(ThreadState state) {
+			if (!transferPriority || holder == state)
+				return;
+
+			ThreadState previous = holder;
+			holder = state;
+
+			if (previous != null) {
+				previous.held.remove(this);
+				previous.updateEffectivePriority();
+			}
+			if (state != null) {
+				state.held.add(this);
+				state.updateEffectivePriority();
+			}
+		}
+
+		/**
+		 * The priority of a waiting thread changed, so pass the change on to
+		 * the thread holding this queue.
+		 */
+		protected void donationChanged() {
+			if (transferPriority && holder != null)
+				holder.updateEffectivePriority();
 		}
 
 		/**
@@ -170,6 +277,15 @@ public class PriorityScheduler extends Scheduler {
 		 * threads to the owning thread.
 		 */
 		public boolean transferPriority;
+
+		/** The thread that has access, if this queue transfers priority. */
+		protected ThreadState holder = null;
+
+		/**
+		 * The waiting threads, highest effective priority first, and in the
+		 * order they started waiting among those of the same priority.
+		 */
+		private TreeSet<ThreadState> waitQueue;
 	}
 
 	/**
@@ -179,7 +295,7 @@ public class PriorityScheduler extends Scheduler {
 	 * 
 	 * @see nachos.threads.KThread#schedulingState
 	 */
-	protected class ThreadState {
+	protected class ThreadState implements Comparable<ThreadState> {
 		/**
 		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
 		 * specified thread.
@@ -207,8 +323,7 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the effective priority of the associated thread.
 		 */
 		public int getEffectivePriority() {
-			// implement me
-			return priority;
+			return effectivePriority;
 		}
 
 		/**
@@ -222,7 +337,7 @@ public class PriorityScheduler extends Scheduler {
 
 			this.priority = priority;
 
-			// implement me
+			updateEffectivePriority();
 		}
 
 		/**
@@ -238,7 +353,13 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#waitForAccess
 		 */
 		public void waitForAccess(PriorityQueue waitQueue) {
-			// implement me
+			Lib.assertTrue(waitingOn == null);
+
+			waitingOn = waitQueue;
+			waitStarted = numWaits++;
+
+			waitQueue.add(this);
+			waitQueue.donationChanged();
 		}
 
 		/**
@@ -252,7 +373,46 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#nextThread
 		 */
 		public void acquire(PriorityQueue waitQueue) {
-			// implement me
+			waitQueue.setHolder(this);
+		}
+
+		/**
+		 * Recompute the effective priority of the associated thread: its own
+		 * priority, or the highest donated by any queue it holds. If that
+		 * changes, move the thread within the queue it is waiting on, and pass
+		 * the change on to that queue's holder.
+		 */
+		protected void updateEffectivePriority() {
+			int effective = priority;
+			for (Iterator<PriorityQueue> i = held.iterator(); i.hasNext();)
+				effective = Math.max(effective, i.next().getDonation());
+
+			if (effective == effectivePriority)
+				return;
+
+			if (waitingOn == null) {
+				effectivePriority = effective;
+				return;
+			}
+
+			waitingOn.remove(this);
+			effectivePriority = effective;
+			waitingOn.add(this);
+
+			waitingOn.donationChanged();
+		}
+
+		/**
+		 * Order threads by decreasing effective priority, and then by when
+		 * they started waiting.
+		 */
+		public int compareTo(ThreadState state) {
+			if (effectivePriority != state.effectivePriority)
+				return effectivePriority > state.effectivePriority ? -1 : 1;
+			else if (waitStarted != state.waitStarted)
+				return waitStarted < state.waitStarted ? -1 : 1;
+			else
+				return 0;
 		}
 
 		/** The thread with which this object is associated. */
@@ -260,5 +420,23 @@ public class PriorityScheduler extends Scheduler {
 
 		/** The priority of the associated thread. */
 		protected int priority;
+
+		/**
+		 * The priority of the associated thread, including any donated to it.
+		 * Kept up to date by <tt>updateEffectivePriority()</tt>.
+		 */
+		protected int effectivePriority = priorityMinimum;
+
+		/** The queue the associated thread is waiting on, if any. */
+		protected PriorityQueue waitingOn = null;
+
+		/** When the associated thread started waiting on <tt>waitingOn</tt>. */
+		protected long waitStarted;
+
+		/** The queues transferring priority that the associated thread holds. */
+		protected HashSet<PriorityQueue> held = new HashSet<PriorityQueue>();
 	}
+
+	/** Counts calls to <tt>waitForAccess()</tt>, to order waiting threads. */
+	private long numWaits = 0;
 }
@@ -129,6 +129,18 @@ public abstract class Scheduler {
 		setPriority(KThread.currentThread(), priority);
 	}
 
+	/**
+	 * Called when the current thread is about to give up the processor,
+	 * because it is yielding, blocking, or finishing, so that schedulers that
+	 * charge threads for the time they run can do so. Must be called with
+	 * interrupts disabled.
+	 * 
+	 * @param thread the current thread.
+	 */
+	public void stopRunning(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
 	/**
 	 * If possible, raise the priority of the current thread in some
 	 * scheduler-dependent way.
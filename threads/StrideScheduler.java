@@ -0,0 +1,273 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Comparator;
+import java.util.TreeSet;
+
+/**
+ * A scheduler that chooses threads using stride scheduling.
+ *
+ * <p>
+ * Every thread holds a number of tickets, its share of the processor. Its
+ * stride is <tt>strideOne</tt> divided by its tickets, and its pass starts at
+ * the pass of the threads already running. Each tick a thread runs advances
+ * its pass by its stride, and each queue chooses the waiting thread with the
+ * lowest pass. So, over time, each thread gets processor time in proportion to
+ * its tickets, without any of the randomness of a lottery. A thread is
+ * charged whenever it gives up the processor, whether it yields or blocks.
+ *
+ * <p>
+ * A thread that blocks does not save up processor time while it sleeps: when
+ * it is woken up, its pass is raised to the pass of the last thread its queue
+ * chose, if it is behind.
+ *
+ * <p>
+ * Tickets are not transferred through locks or joins.
+ */
+public class StrideScheduler extends Scheduler {
+	/**
+	 * Allocate a new stride scheduler.
+	 */
+	public StrideScheduler() {
+	}
+
+	/**
+	 * Allocate a new stride thread queue.
+	 *
+	 * @param transferPriority ignored. This scheduler does not transfer
+	 * tickets.
+	 * @return a new stride thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new StrideQueue();
+	}
+
+	/**
+	 * Advance the pass of the specified thread for the time it has run, so
+	 * that threads that block without waiting on a queue, in
+	 * <tt>Alarm.waitUntil()</tt> for instance, are charged as well.
+	 *
+	 * @param thread the current thread.
+	 */
+	public void stopRunning(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		getThreadState(thread).charge();
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).tickets;
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return getPriority(thread);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= priorityMinimum
+				&& priority <= priorityMaximum);
+
+		getThreadState(thread).tickets = priority;
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMaximum)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMinimum)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * The default number of tickets for a new thread.
+	 */
+	public static final int priorityDefault = 100;
+
+	/**
+	 * The minimum number of tickets that a thread can have.
+	 */
+	public static final int priorityMinimum = 1;
+
+	/**
+	 * The maximum number of tickets that a thread can have.
+	 */
+	public static final int priorityMaximum = 1 << 16;
+
+	/**
+	 * The stride of a thread with one ticket.
+	 */
+	public static final long strideOne = 1 << 20;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that sorts its waiting threads by pass.
+	 */
+	protected class StrideQueue extends ThreadQueue {
+		StrideQueue() {
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+
+			// charge it before it is sorted by pass, rather than leaving it to
+			// stopRunning()
+			if (thread == KThread.currentThread())
+				state.charge();
+			else if (state.pass < pass)
+				state.pass = pass;
+
+			state.waitSequence = numWaits++;
+			waitQueue.add(state);
+		}
+
+		/**
+		 * Remove the waiting thread with the lowest pass. The thread's time on
+		 * the processor is counted from now on.
+		 *
+		 * @return the chosen thread, or <tt>null</tt> if the queue is empty.
+		 */
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = waitQueue.pollFirst();
+			if (state == null)
+				return null;
+
+			if (state.pass > pass)
+				pass = state.pass;
+
+			state.dispatchedAt = Machine.timer().getTime();
+			state.charged = false;
+			return state.thread;
+		}
+
+		/**
+		 * The specified thread has received exclusive access, without using
+		 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
+		 * threads are waiting for access.
+		 */
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			Lib.assertTrue(waitQueue.isEmpty());
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (ThreadState state : waitQueue)
+				System.out.print(state.thread + " (" + state.pass + ") ");
+		}
+
+		/** The waiting threads, lowest pass first. */
+		private TreeSet<ThreadState> waitQueue = new TreeSet<ThreadState>(
+				new Comparator<ThreadState>() {
+					public int compare(ThreadState a, ThreadState b) {
+						if (a.pass != b.pass)
+							return a.pass < b.pass ? -1 : 1;
+						else
+							return Long.compare(a.waitSequence, b.waitSequence);
+					}
+				});
+
+		/** The pass of the last thread chosen. */
+		private long pass = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread in a stride scheduler.
+	 */
+	protected class ThreadState {
+		/**
+		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+		 * specified thread.
+		 *
+		 * @param thread the thread this state belongs to.
+		 */
+		public ThreadState(KThread thread) {
+			this.thread = thread;
+			this.dispatchedAt = Machine.timer().getTime();
+		}
+
+		/**
+		 * Advance the pass of the associated thread by its stride for every
+		 * tick it has run since it was last chosen, and at least once, so
+		 * that a thread that yields without using any time still makes way
+		 * for the others. Charging it again before it is chosen again does
+		 * nothing.
+		 */
+		void charge() {
+			if (charged)
+				return;
+			charged = true;
+
+			long now = Machine.timer().getTime();
+			pass += Math.max(now - dispatchedAt, 1) * (strideOne / tickets);
+			dispatchedAt = now;
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		/** The tickets of the associated thread. */
+		protected int tickets = priorityDefault;
+
+		/** The pass of the associated thread. */
+		protected long pass = 0;
+
+		/** The time at which the associated thread was last chosen. */
+		protected long dispatchedAt;
+
+		/** Whether the associated thread has been charged since then. */
+		protected boolean charged = false;
+
+		/** The order in which the associated thread started waiting. */
+		protected long waitSequence;
+	}
+
+	/** The number of times any thread has started waiting. */
+	private long numWaits = 0;
+}
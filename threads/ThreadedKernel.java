@@ -16,6 +16,7 @@ public class ThreadedKernel extends Kernel {
 	/**
 	 * Initialize this kernel. Creates a scheduler, the first thread, and an
 	 * alarm, and enables interrupts. Creates a file system if necessary.
+	 * Arranges for per-thread statistics to be printed when Nachos halts.
 	 */
 	public void initialize(String[] args) {
 		// set scheduler
@@ -36,6 +37,12 @@ public class ThreadedKernel extends Kernel {
 
 		alarm = new Alarm();
 
+		Machine.setHaltHandler(new Runnable() {
+			public void run() {
+				KThread.printStats();
+			}
+		});
+
 		Machine.interrupt().enable();
 	}
 
@@ -0,0 +1,153 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * An allocator for physical page frames. The free frames are kept on a stack
+ * of <tt>int</tt>s, so allocating and freeing a frame takes constant time and
+ * allocates nothing, and a bitmap records which frames are free, so that
+ * freeing a frame twice is caught. Each frame also records the process that
+ * owns it, in an array alongside.
+ *
+ * <p>
+ * An allocator is not synchronized; callers must hold the kernel's frame
+ * lock, which is <tt>UserKernel.memLock</tt>, or <tt>VMKernel.pageLock</tt>
+ * under virtual memory.
+ */
+public class FrameAllocator {
+    /**
+     * Allocate a new frame allocator, with every frame free.
+     *
+     * @param numFrames the number of physical page frames.
+     */
+    public FrameAllocator(int numFrames) {
+        this.numFrames = numFrames;
+
+        freeStack = new int[numFrames];
+        freeMap = new long[(numFrames + 63) / 64];
+        owner = new int[numFrames];
+
+        // push the highest frame first, so frames are handed out in order
+        for (int ppn = numFrames - 1; ppn >= 0; ppn--)
+            push(ppn);
+    }
+
+    /**
+     * Return the number of free frames.
+     *
+     * @return the number of free frames.
+     */
+    public int numFree() {
+        return numFree;
+    }
+
+    /**
+     * Allocate one frame.
+     *
+     * @return the frame's physical page number, or -1 if none are free.
+     */
+    public int allocate() {
+        if (numFree == 0)
+            return -1;
+
+        int ppn = freeStack[--numFree];
+        freeMap[ppn >> 6] &= ~(1L << ppn);
+        owner[ppn] = noOwner;
+        return ppn;
+    }
+
+    /**
+     * Allocate <i>n</i> frames for a process, or none at all if fewer than
+     * <i>n</i> are free.
+     *
+     * @param n the number of frames to allocate.
+     * @param pid the process that will own the frames.
+     * @return the frames' physical page numbers, or <tt>null</tt> if there are
+     * not enough free frames.
+     */
+    public int[] allocate(int n, int pid) {
+        Lib.assertTrue(n >= 0);
+
+        if (n > numFree)
+            return null;
+
+        int[] ppns = new int[n];
+        for (int i = 0; i < n; i++) {
+            int ppn = freeStack[--numFree];
+            freeMap[ppn >> 6] &= ~(1L << ppn);
+            owner[ppn] = pid;
+            ppns[i] = ppn;
+        }
+
+        return ppns;
+    }
+
+    /**
+     * Free one frame.
+     *
+     * @param ppn the frame's physical page number.
+     */
+    public void free(int ppn) {
+        push(ppn);
+    }
+
+    /**
+     * Free several frames.
+     *
+     * @param ppns the frames' physical page numbers.
+     */
+    public void free(int[] ppns) {
+        for (int i = 0; i < ppns.length; i++)
+            push(ppns[i]);
+    }
+
+    /**
+     * Return whether a frame is free.
+     *
+     * @param ppn the frame's physical page number.
+     * @return <tt>true</tt> if the frame is free.
+     */
+    public boolean isFree(int ppn) {
+        Lib.assertTrue(ppn >= 0 && ppn < numFrames);
+
+        return (freeMap[ppn >> 6] & (1L << ppn)) != 0;
+    }
+
+    /**
+     * Return the process that owns an allocated frame.
+     *
+     * @param ppn the frame's physical page number.
+     * @return the owner's process ID, or <tt>noOwner</tt> if the frame is free
+     * or was allocated without one.
+     */
+    public int getOwner(int ppn) {
+        Lib.assertTrue(ppn >= 0 && ppn < numFrames);
+
+        return owner[ppn];
+    }
+
+    private void push(int ppn) {
+        Lib.assertTrue(ppn >= 0 && ppn < numFrames);
+        Lib.assertTrue(!isFree(ppn), "frame freed twice");
+
+        freeMap[ppn >> 6] |= 1L << ppn;
+        owner[ppn] = noOwner;
+        freeStack[numFree++] = ppn;
+    }
+
+    /** The owner of a free frame, or of one allocated without an owner. */
+    public static final int noOwner = -1;
+
+    private int numFrames;
+
+    /** The free frames; the top of the stack is allocated next. */
+    private int[] freeStack;
+
+    private int numFree = 0;
+
+    /** One bit per frame, set if the frame is free. */
+    private long[] freeMap;
+
+    /** The process that owns each frame. */
+    private int[] owner;
+}
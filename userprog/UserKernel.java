@@ -33,9 +33,7 @@ public class UserKernel extends ThreadedKernel {
         memLock = new Lock();
         proLock = new Lock();
         processID = 0;
-        for (int ppn = 0; ppn < Machine.processor().getNumPhysPages(); ppn++){
-            freePage.add(ppn); //get the free physical pages
-        }
+        frames = new FrameAllocator(Machine.processor().getNumPhysPages());
         
     }
     
@@ -122,7 +120,7 @@ public class UserKernel extends ThreadedKernel {
     // dummy variables to make javac smarter
     private static Coff dummy1 = null;
     
-    public static LinkedList <Integer> freePage = new LinkedList <Integer>(); //maintain the free physical pages
+    public static FrameAllocator frames; //maintain the free physical pages
     public static Lock proLock;    //need lock to access the process
     public static int processID;
     public static LinkedList<Integer> runningQueue = new LinkedList<Integer>(); //maintain the running process
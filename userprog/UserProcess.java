@@ -79,7 +79,14 @@ public class UserProcess {
         if (!load(name, args))
             return false;
         UserKernel.runningQueue.add(this.pid);
-        new UThread(this).setName(name).fork();
+        UThread thread = new UThread(this);
+        thread.setName(name);
+        if (share != 0) {
+            boolean intStatus = Machine.interrupt().disable();
+            ThreadedKernel.scheduler.setPriority(thread, share);
+            Machine.interrupt().restore(intStatus);
+        }
+        thread.fork();
         
         return true;
     }
@@ -366,7 +373,8 @@ public class UserProcess {
         
         UserKernel.memLock.acquire(); //require a lock when we do memory allocation
         
-        if (numPages > UserKernel.freePage.size()) {
+        int[] ppns = UserKernel.frames.allocate(numPages, pid); //get the ppns from the physical memory
+        if (ppns == null) {
             UserKernel.memLock.release(); //release the lock and return false if there is not enough physical memory to allocate
             coff.close();
             Lib.debug(dbgProcess, "\tinsufficient physical memory");
@@ -376,8 +384,7 @@ public class UserProcess {
         pageTable = new TranslationEntry[numPages]; //create a page table with the size numPage which we need
         
         for (int i = 0; i < numPages; i++){
-            int ppn = UserKernel.freePage.removeFirst(); //get the vpn from the physical memory
-            pageTable[i] = new TranslationEntry(i, ppn, true, false, false, false); //translate vpn to ppn with translationEntry
+            pageTable[i] = new TranslationEntry(i, ppns[i], true, false, false, false); //translate vpn to ppn with translationEntry
         }
         
         UserKernel.memLock.release(); //release the lock after we allocate the memory
@@ -403,8 +410,10 @@ public class UserProcess {
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
+        int[] ppns = new int[pageTable.length];
         for (int i = 0; i <pageTable.length; i++)
-            UserKernel.freePage.add(pageTable[i].ppn); //release all the physical page from physical memory
+            ppns[i] = pageTable[i].ppn;
+        UserKernel.frames.free(ppns); //release all the physical page from physical memory
     }
     
     /**
@@ -661,6 +670,7 @@ public class UserProcess {
         
         UserProcess childProcess = newUserProcess(); //execute the user program in a new child process
         childProcess.parentProcess = this;		//save the detail of child in parent
+        childProcess.share = share;		//the child inherits our share of the processor
         int childPID = -1;
         UserKernel.proLock.acquire();
         boolean check = childProcess.execute(coffName, arguments); //check if the execute success
@@ -674,10 +684,40 @@ public class UserProcess {
         return childPID;
     }
     
+    /**
+     * Handle the share() system call. Only schedulers that divide the
+     * processor by tickets, <tt>StrideScheduler</tt> and
+     * <tt>LotteryScheduler</tt>, support it.
+     */
+    private int handleShare(int tickets) {
+        Scheduler scheduler = ThreadedKernel.scheduler;
+        
+        if (scheduler instanceof StrideScheduler) {
+            if (tickets < StrideScheduler.priorityMinimum
+                || tickets > StrideScheduler.priorityMaximum)
+                return -1;
+        }
+        else if (scheduler instanceof LotteryScheduler) {
+            if (tickets < LotteryScheduler.priorityMinimum)
+                return -1;
+        }
+        else {
+            return -1;
+        }
+        
+        share = tickets;
+        
+        boolean intStatus = Machine.interrupt().disable();
+        scheduler.setPriority(tickets);
+        Machine.interrupt().restore(intStatus);
+        
+        return 0;
+    }
+    
     private static final int syscallHalt = 0, syscallExit = 1, syscallExec = 2,
     syscallJoin = 3, syscallCreate = 4, syscallOpen = 5,
     syscallRead = 6, syscallWrite = 7, syscallClose = 8,
-    syscallUnlink = 9;
+    syscallUnlink = 9, syscallShare = 13;
     
     /**
      * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -731,6 +771,10 @@ public class UserProcess {
      * <td>9</td>
      * <td><tt>int  unlink(char *name);</tt></td>
      * </tr>
+     * <tr>
+     * <td>13</td>
+     * <td><tt>int  share(int tickets);</tt></td>
+     * </tr>
      * </table>
      *
      * @param syscall the syscall number.
@@ -762,6 +806,8 @@ public class UserProcess {
                 return handleExec(a0,a1,a2);
             case syscallJoin:
                 return handleJoin(a0,a1);
+            case syscallShare:
+                return handleShare(a0);
             default:
                 Lib.debug(dbgProcess, "Unknown syscall " + syscall);
                 Lib.assertNotReached("Unknown system call!");
@@ -819,6 +865,12 @@ public class UserProcess {
     private static int abnormalExitStatus = 0;   //0: normal exit,1: abnormal exit
     private static final char dbgProcess = 'a';
     private int pid;
+    
+    /**
+     * The tickets this process asked for with <tt>share()</tt>, or inherited
+     * from its parent, or 0 to leave its thread with the scheduler's default.
+     */
+    private int share = 0;
     private Condition childCV = new Condition(UserKernel.proLock); 
     private HashSet<Integer> childrenSet = new HashSet<Integer>(); //store all the child pid
     private HashMap<Integer, Integer> exitStatusMap = new HashMap<Integer, Integer>(); //store the pid with exit status
@@ -0,0 +1,184 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * The adaptive replacement cache policy, in the form of CAR (clock with
+ * adaptive replacement), since the kernel never sees hits, only
+ * <tt>used</tt> bits.
+ *
+ * <p>
+ * Resident pages are on one of two clocks: <tt>T1</tt> for pages that have
+ * been brought in once recently, and <tt>T2</tt> for pages that have been
+ * brought in again, or used again while on <tt>T1</tt>. The policy also
+ * remembers the pages it recently evicted from each clock, without their
+ * frames, in the ghost lists <tt>B1</tt> and <tt>B2</tt>. A fault on a page in
+ * <tt>B1</tt> means <tt>T1</tt> is too small, and one in <tt>B2</tt> that
+ * <tt>T2</tt> is, and the target size <tt>p</tt> of <tt>T1</tt> is moved
+ * accordingly. Victims are taken from <tt>T1</tt> while it is at least its
+ * target size, and from <tt>T2</tt> otherwise.
+ *
+ * <p>
+ * Pages are identified by their translation entries, which belong to their
+ * process's page table and so stay the same while the page is swapped out.
+ */
+public class ARCPolicy implements PageReplacementPolicy {
+    /**
+     * Allocate a new ARC policy.
+     */
+    public ARCPolicy() {
+        numFrames = Machine.processor().getNumPhysPages();
+
+        next = new int[numFrames];
+        prev = new int[numFrames];
+        list = new int[numFrames];
+        Arrays.fill(list, none);
+    }
+
+    public int chooseVictim() {
+        int from = (size[t2] == 0 || size[t1] >= Math.max(1, p)) ? t1 : t2;
+        if (size[from] == 0)
+            from = t2;
+
+        // if every page on one clock is pinned, fall back to the other
+        int ppn = sweep(from);
+        if (ppn == -1)
+            ppn = sweep(from == t1 ? t2 : t1);
+
+        return ppn;
+    }
+
+    public void pageLoaded(int ppn) {
+        TranslationEntry entry = VMKernel.invertedPT[ppn].entry;
+
+        if (b1.remove(entry)) {
+            p = Math.min(p + Math.max(1, b2.size() / (b1.size() + 1)), numFrames);
+            append(t2, ppn);
+        }
+        else if (b2.remove(entry)) {
+            p = Math.max(p - Math.max(1, b1.size() / (b2.size() + 1)), 0);
+            append(t2, ppn);
+        }
+        else {
+            // keep the ghost lists from growing past the number of frames
+            if (evicted) {
+                if (size[t1] + b1.size() >= numFrames)
+                    removeOldest(b1);
+                else if (size[t1] + size[t2] + b1.size() + b2.size() >= 2 * numFrames)
+                    removeOldest(b2);
+            }
+            append(t1, ppn);
+        }
+
+        evicted = false;
+    }
+
+    public void pageFreed(int ppn) {
+        if (list[ppn] != none)
+            remove(ppn);
+    }
+
+    /**
+     * Move a clock's hand until it finds a page that is neither used nor
+     * pinned, and take that page's frame. Used pages have their bits cleared
+     * and go to the tail of <tt>T2</tt>, and pinned pages are passed over.
+     * The hand goes round at most twice, since after one time round every
+     * page left on the clock is unused or pinned.
+     *
+     * @return the frame taken, or -1 if every page on the clock is pinned.
+     */
+    private int sweep(int clock) {
+        VMKernel.invertedData[] frames = VMKernel.invertedPT;
+
+        for (int i = 2 * size[clock]; i > 0 && size[clock] > 0; i--) {
+            int ppn = head[clock];
+            VMKernel.invertedData frame = frames[ppn];
+
+            if (frame.pinned) {
+                head[clock] = next[ppn];
+            }
+            else if (!frame.entry.used) {
+                remove(ppn);
+                (clock == t1 ? b1 : b2).add(frame.entry);
+                evicted = true;
+                return ppn;
+            }
+            else {
+                // a page used again while on T1 has been seen twice
+                frame.entry.used = false;
+                remove(ppn);
+                append(t2, ppn);
+            }
+        }
+
+        return -1;
+    }
+
+    private static void removeOldest(LinkedHashSet<TranslationEntry> ghosts) {
+        Iterator<TranslationEntry> i = ghosts.iterator();
+        if (i.hasNext()) {
+            i.next();
+            i.remove();
+        }
+    }
+
+    /**
+     * Add a frame at the tail of a clock, just behind its hand.
+     */
+    private void append(int clock, int ppn) {
+        list[ppn] = clock;
+
+        if (size[clock] == 0) {
+            head[clock] = next[ppn] = prev[ppn] = ppn;
+        }
+        else {
+            int tail = prev[head[clock]];
+            next[tail] = ppn;
+            prev[ppn] = tail;
+            next[ppn] = head[clock];
+            prev[head[clock]] = ppn;
+        }
+
+        size[clock]++;
+    }
+
+    private void remove(int ppn) {
+        int clock = list[ppn];
+        list[ppn] = none;
+
+        if (--size[clock] == 0)
+            return;
+
+        next[prev[ppn]] = next[ppn];
+        prev[next[ppn]] = prev[ppn];
+        if (head[clock] == ppn)
+            head[clock] = next[ppn];
+    }
+
+    private static final int none = -1, t1 = 0, t2 = 1;
+
+    private int numFrames;
+
+    /** The target size of <tt>T1</tt>. */
+    private int p = 0;
+
+    /** Whether the last frame handed out was taken from a page. */
+    private boolean evicted = false;
+
+    /** The frame at each clock's hand, and the number of frames on it. */
+    private int[] head = new int[2], size = new int[2];
+
+    /** The clocks, as circular doubly-linked lists threaded through frames. */
+    private int[] next, prev;
+
+    /** The clock each frame is on, or <tt>none</tt>. */
+    private int[] list;
+
+    /** Pages recently evicted from <tt>T1</tt> and <tt>T2</tt>, oldest first. */
+    private LinkedHashSet<TranslationEntry> b1 = new LinkedHashSet<TranslationEntry>(),
+        b2 = new LinkedHashSet<TranslationEntry>();
+}
@@ -0,0 +1,76 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * The aging page replacement policy, an approximation of LRU. Each frame has
+ * a 32-bit age. Every <tt>Stats.TimerTicks</tt> ticks, every age is shifted
+ * right by one, and the <tt>used</tt> bit of the frame's page is shifted into
+ * the top and cleared. The page with the lowest age, that is, the one least
+ * recently used to the resolution of those intervals, is evicted.
+ *
+ * <p>
+ * The ages are only brought up to date when a victim is needed, by shifting
+ * them once for each interval that has passed since the last time.
+ */
+public class AgingPolicy implements PageReplacementPolicy {
+    /**
+     * Allocate a new aging policy.
+     */
+    public AgingPolicy() {
+        age = new int[Machine.processor().getNumPhysPages()];
+    }
+
+    public int chooseVictim() {
+        VMKernel.invertedData[] frames = VMKernel.invertedPT;
+
+        long time = Machine.timer().getTime();
+        long intervals = (time - lastAged) / Stats.TimerTicks;
+        int shift = (int) Math.min(intervals, 32);
+        lastAged += intervals * Stats.TimerTicks;
+
+        for (int ppn = 0; ppn < frames.length; ppn++) {
+            if (frames[ppn] == null)
+                continue;
+
+            int shifted = (shift == 32) ? 0 : age[ppn] >>> shift;
+            if (frames[ppn].entry.used) {
+                shifted |= referenced;
+                frames[ppn].entry.used = false;
+            }
+            age[ppn] = shifted;
+        }
+
+        // start looking after the last victim, so equal ages take turns
+        int victim = -1;
+        for (int i = 1; i <= frames.length; i++) {
+            int ppn = (last + i) % frames.length;
+            if (frames[ppn] == null || frames[ppn].pinned)
+                continue;
+
+            if (victim == -1 || Integer.compareUnsigned(age[ppn], age[victim]) < 0)
+                victim = ppn;
+        }
+
+        last = victim;
+        return victim;
+    }
+
+    public void pageLoaded(int ppn) {
+        age[ppn] = referenced;
+    }
+
+    public void pageFreed(int ppn) {
+    }
+
+    /** The top bit of an age, set for an interval in which the page was used. */
+    private static final int referenced = 1 << 31;
+
+    private int[] age;
+
+    /** The time up to which the ages have been shifted. */
+    private long lastAged = 0;
+
+    /** The last frame chosen. */
+    private int last = -1;
+}
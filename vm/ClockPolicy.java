@@ -0,0 +1,45 @@
+package nachos.vm;
+
+/**
+ * The clock, or second chance, page replacement policy. A hand sweeps the
+ * frames in order, clearing the <tt>used</tt> bit of each frame it passes,
+ * and evicts the first frame whose page was not used since the hand last
+ * passed it.
+ */
+public class ClockPolicy implements PageReplacementPolicy {
+    /**
+     * Allocate a new clock policy.
+     */
+    public ClockPolicy() {
+    }
+
+    public int chooseVictim() {
+        VMKernel.invertedData[] frames = VMKernel.invertedPT;
+
+        // after one time round, only pinned pages can still be used
+        for (int i = 0; i < 2 * frames.length; i++) {
+            VMKernel.invertedData frame = frames[hand];
+            int ppn = hand;
+            hand = (hand + 1) % frames.length;
+
+            if (frame == null || frame.pinned)
+                continue;
+
+            if (!frame.entry.used)
+                return ppn;
+
+            frame.entry.used = false;
+        }
+
+        return -1;
+    }
+
+    public void pageLoaded(int ppn) {
+    }
+
+    public void pageFreed(int ppn) {
+    }
+
+    /** The next frame the hand will look at. */
+    private int hand = 0;
+}
@@ -0,0 +1,56 @@
+package nachos.vm;
+
+/**
+ * The enhanced clock page replacement policy. Like the clock policy, but it
+ * also looks at the <tt>dirty</tt> bit, and prefers to evict a page that does
+ * not have to be written to swap first.
+ *
+ * <p>
+ * The hand first sweeps once looking for a frame that is neither used nor
+ * dirty, changing nothing. Failing that, it sweeps again looking for one that
+ * is not used, clearing <tt>used</tt> bits as it goes. Failing that too, every
+ * <tt>used</tt> bit is now clear, and it starts over.
+ */
+public class EnhancedClockPolicy implements PageReplacementPolicy {
+    /**
+     * Allocate a new enhanced clock policy.
+     */
+    public EnhancedClockPolicy() {
+    }
+
+    public int chooseVictim() {
+        VMKernel.invertedData[] frames = VMKernel.invertedPT;
+
+        // the second pass clears every used bit, so the fourth must succeed
+        // unless every page is pinned
+        for (int pass = 0; pass < 4; pass++) {
+            boolean clean = (pass % 2 == 0);
+
+            for (int i = 0; i < frames.length; i++) {
+                VMKernel.invertedData frame = frames[hand];
+                int ppn = hand;
+                hand = (hand + 1) % frames.length;
+
+                if (frame == null || frame.pinned)
+                    continue;
+
+                if (!frame.entry.used && (!clean || !frame.entry.dirty))
+                    return ppn;
+
+                if (!clean)
+                    frame.entry.used = false;
+            }
+        }
+
+        return -1;
+    }
+
+    public void pageLoaded(int ppn) {
+    }
+
+    public void pageFreed(int ppn) {
+    }
+
+    /** The next frame the hand will look at. */
+    private int hand = 0;
+}
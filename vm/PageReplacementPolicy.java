@@ -0,0 +1,45 @@
+package nachos.vm;
+
+/**
+ * A policy for choosing which physical page to evict when a page fault needs
+ * a frame and none are free, or when the page-out daemon is freeing frames. The policy is selected by the
+ * <tt>VMKernel.replacementPolicy</tt> key in <tt>nachos.conf</tt>, which
+ * names a class implementing this interface.
+ *
+ * <p>
+ * A policy sees the frames through <tt>VMKernel.invertedPT</tt>: the
+ * translation entry mapped to each frame, whose <tt>used</tt> and
+ * <tt>dirty</tt> bits the processor sets, and whether the frame is pinned.
+ * It is told when a frame is filled with a page, and when a frame is freed.
+ * It is never told about hits, since those are handled by the processor
+ * without involving the kernel, so it must rely on the <tt>used</tt> bits.
+ */
+public interface PageReplacementPolicy {
+    /**
+     * Choose a frame to evict. Free frames have no entry in
+     * <tt>VMKernel.invertedPT</tt>, and the chosen frame must hold a page that
+     * is not pinned. The caller writes the page out if it is dirty, and frees
+     * the frame. If every page is pinned, the policy must not wait for one to
+     * be unpinned, but return -1 so that the caller can.
+     *
+     * @return the physical page number of the frame to evict, or -1 if every
+     *         page is pinned.
+     */
+    public int chooseVictim();
+
+    /**
+     * Called when a frame has been filled with a page, and
+     * <tt>VMKernel.invertedPT</tt> updated to match.
+     *
+     * @param ppn the physical page number of the frame.
+     */
+    public void pageLoaded(int ppn);
+
+    /**
+     * Called when a frame is freed, because its page was evicted or because
+     * the process using it exited.
+     *
+     * @param ppn the physical page number of the frame.
+     */
+    public void pageFreed(int ppn);
+}
@@ -0,0 +1,129 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * An allocator for page-sized slots in the swap file. A bitmap records which
+ * slots are in use, and a run of contiguous slots can be allocated at once, so
+ * that pages evicted together can be written, and later read back, with one
+ * file operation. The swap file has no fixed size, so the bitmap grows
+ * whenever no run of free slots is long enough.
+ *
+ * <p>
+ * Runs are found next-fit: the search starts where the last run ended, so
+ * that freed slots are not reused straight away, and runs allocated one after
+ * another tend to be next to each other in the file.
+ *
+ * <p>
+ * An allocator is not synchronized; callers must hold
+ * <tt>VMKernel.pageLock</tt>.
+ */
+public class SwapAllocator {
+    /**
+     * Allocate a new swap allocator, with every slot free.
+     */
+    public SwapAllocator() {
+        usedMap = new long[1];
+    }
+
+    /**
+     * Return the number of slots in use.
+     *
+     * @return the number of slots in use.
+     */
+    public int numUsed() {
+        return numUsed;
+    }
+
+    /**
+     * Allocate a run of contiguous slots.
+     *
+     * @param n the number of slots to allocate.
+     * @return the first slot of the run.
+     */
+    public int allocate(int n) {
+        Lib.assertTrue(n > 0);
+
+        int numSlots = usedMap.length * 64;
+        int start = findRun(rover, numSlots, n);
+        if (start == -1)
+            start = findRun(0, Math.min(rover + n - 1, numSlots), n);
+
+        if (start == -1) {
+            // grow the bitmap, keeping any free run at its end
+            start = numSlots;
+            while (start > 0 && !isUsed(start - 1))
+                start--;
+
+            long[] newMap = new long[Math.max(usedMap.length * 2,
+                                              (start + n + 63) / 64)];
+            System.arraycopy(usedMap, 0, newMap, 0, usedMap.length);
+            usedMap = newMap;
+        }
+
+        for (int slot = start; slot < start + n; slot++)
+            usedMap[slot >> 6] |= 1L << slot;
+
+        numUsed += n;
+        rover = start + n;
+        return start;
+    }
+
+    /**
+     * Free one slot.
+     *
+     * @param slot the slot to free.
+     */
+    public void free(int slot) {
+        Lib.assertTrue(slot >= 0 && slot < usedMap.length * 64);
+        Lib.assertTrue(isUsed(slot), "swap slot freed twice");
+
+        usedMap[slot >> 6] &= ~(1L << slot);
+        numUsed--;
+    }
+
+    /**
+     * Return whether a slot is in use.
+     *
+     * @param slot the slot.
+     * @return <tt>true</tt> if the slot is in use.
+     */
+    public boolean isUsed(int slot) {
+        return (usedMap[slot >> 6] & (1L << slot)) != 0;
+    }
+
+    /**
+     * Find a run of free slots that starts at or after <i>from</i> and ends
+     * at or before <i>to</i>.
+     *
+     * @return the first slot of the run, or -1 if there is none.
+     */
+    private int findRun(int from, int to, int n) {
+        int runStart = from, slot = from;
+
+        while (slot < to) {
+            // skip whole words of used slots at once
+            if ((slot & 63) == 0 && usedMap[slot >> 6] == -1L) {
+                slot += 64;
+                runStart = slot;
+            }
+            else if (isUsed(slot)) {
+                slot++;
+                runStart = slot;
+            }
+            else if (++slot - runStart == n) {
+                return runStart;
+            }
+        }
+
+        return -1;
+    }
+
+    private int numUsed = 0;
+
+    /** Where the search for the next run starts. */
+    private int rover = 0;
+
+    /** One bit per slot, set if the slot is in use. */
+    private long[] usedMap;
+}
@@ -1,6 +1,7 @@
 package nachos.vm;
 
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.Comparator;
 
 import nachos.machine.*;
 import nachos.threads.*;
@@ -26,17 +27,34 @@ public class VMKernel extends UserKernel {
         //VMFreePage = UserKernel.freePage;
         
         swapFile = ThreadedKernel.fileSystem.open(swapFileName, true);
-        freeSwapList = new LinkedList<Integer>();
+        swap = new SwapAllocator();
         //swapFile = new OpenFile(file, swapFileName);
-        victim = 0;
         numPinned = 0;
-        spn = 0;
         invertedPT = new invertedData[Machine.processor().getNumPhysPages()];
+        pagingOut = new invertedData[invertedPT.length];
+        replacementPolicy = (PageReplacementPolicy) Lib.constructObject(
+            Config.getString("VMKernel.replacementPolicy", "nachos.vm.ClockPolicy"));
         swapFileLock = new Lock();
-        swapListLock = new Lock();
-        pinnedLock = new Lock();
-        spnLock = new Lock();
+        pageLock = new Lock();
+        unpinnedPage = new Condition(pageLock);
+        pageOutNeeded = new Condition(pageLock);
+        pageOutDone = new Condition(pageLock);
         
+        lowWatermark = Config.getInteger("VMKernel.lowWatermark", 0);
+        highWatermark = Config.getInteger("VMKernel.highWatermark", lowWatermark);
+        pageOutBatch = Config.getInteger("VMKernel.pageOutBatch", 4);
+        swapCluster = Config.getInteger("VMKernel.swapCluster", 1);
+        Lib.assertTrue(lowWatermark >= 0 && highWatermark >= lowWatermark
+                       && highWatermark < invertedPT.length && pageOutBatch > 0
+                       && swapCluster > 0);
+        
+        if (lowWatermark > 0) {
+            new KThread(new Runnable() {
+                public void run() {
+                    pageOut();
+                }
+            }).setName("page-out").fork();
+        }
     }
     
     /**
@@ -53,79 +71,364 @@ public class VMKernel extends UserKernel {
         super.run();
     }
     
-    //update the inverted table
-    public static boolean swapIn(int vpn, VMProcess workprocess, int ppn){
-        
-        //get the SPN
-        int tempSPN = workprocess.pageTable[vpn].vpn;
-        if(tempSPN < 0 || ppn < 0) return false;
-        //read from swapFile
+    /**
+     * Read pages from consecutive swap slots into frames, with one file
+     * operation.
+     *
+     * @param slot the first slot.
+     * @param ppns the frames, in slot order.
+     * @param n the number of pages.
+     */
+    public static void readSwap(int slot, int[] ppns, int n){
         byte[] memory = Machine.processor().getMemory();
+        byte[] buf = (n == 1) ? memory : new byte[n * Processor.pageSize];
+        int offset = (n == 1) ? ppns[0] * Processor.pageSize : 0;
+        
         swapFileLock.acquire();
-        swapFile.read(tempSPN*Processor.pageSize, memory, ppn*Processor.pageSize, Processor.pageSize);
+        swapFile.read(slot*Processor.pageSize, buf, offset, n*Processor.pageSize);
         swapFileLock.release();
-        //add the spn to the freeSwapList
-        swapListLock.acquire();
-        freeSwapList.add(tempSPN);
-        swapListLock.release();
-   	    
-        //put ppn into translation entry and set to valid bit to true
-        proLock.acquire();
-        workprocess.pageTable[vpn].ppn = ppn;
-        //workprocess.pageTable[vpn].vpn = vpn;
-   	    workprocess.pageTable[vpn].valid = true;
-   	    proLock.release();
-   	    
-        return true;
+        
+        if (n > 1) {
+            for (int i = 0; i < n; i++)
+                System.arraycopy(buf, i*Processor.pageSize, memory, ppns[i]*Processor.pageSize, Processor.pageSize);
+        }
+        Machine.kernelStats().numSwapReads += n;
+        Machine.kernelStats().numSwapFileOps++;
     }
     
-    public static boolean swapOut(int ppn){
-        //if(ppn >= 0 || ppn)
-        int tempSPN = 0;
-        if(VMKernel.freeSwapList.size() == 0){
-            spnLock.acquire();
-            tempSPN = ++spn;
-            spnLock.release();
-        } else {
-            swapListLock.acquire();
-            tempSPN = VMKernel.freeSwapList.removeFirst();
-            swapListLock.release();
+    /**
+     * Write pages from frames to consecutive swap slots, with one file
+     * operation.
+     *
+     * @param slot the first slot.
+     * @param ppns the frames, in slot order.
+     * @param n the number of pages.
+     */
+    private static void writeSwap(int slot, int[] ppns, int n){
+        byte[] memory = Machine.processor().getMemory();
+        byte[] buf = memory;
+        int offset = ppns[0] * Processor.pageSize;
+        
+        if (n > 1) {
+            buf = new byte[n * Processor.pageSize];
+            offset = 0;
+            for (int i = 0; i < n; i++)
+                System.arraycopy(memory, ppns[i]*Processor.pageSize, buf, i*Processor.pageSize, Processor.pageSize);
         }
         
-        invertedPT[ppn].entry.vpn = tempSPN;
-        //invertedPT[ppn].entry.valid = false;
-        byte[] memory = Machine.processor().getMemory();
         swapFileLock.acquire();
-        swapFile.write(tempSPN*Processor.pageSize, memory, ppn*Processor.pageSize, Processor.pageSize);
+        swapFile.write(slot*Processor.pageSize, buf, offset, n*Processor.pageSize);
         swapFileLock.release();
-        return true;
+        Machine.kernelStats().numSwapWrites += n;
+        Machine.kernelStats().numSwapFileOps++;
     }
+    
+    /**
+     * Allocate a frame for a faulting page, evicting a page if none are free.
+     * Wakes the page-out daemon if this leaves fewer than
+     * <tt>lowWatermark</tt> frames free. The caller must hold
+     * <tt>pageLock</tt>, and may release it while it fills the frame, which
+     * stays out of everyone else's way until it is passed to
+     * <tt>mapPage()</tt>.
+     *
+     * @return the physical page number of the frame.
+     */
     public static int pageAllocation(){
-        if(freePage.size()!= 0){
-            return freePage.removeFirst();
+        Lib.assertTrue(pageLock.isHeldByCurrentThread());
+        
+        while (frames.numFree() == 0) {
+            int victim = canEvict() ? replacementPolicy.chooseVictim() : -1;
+            if (victim == -1) {
+                unpinnedPage.sleep(); //all pages pinned or in transit
+            } else if (evict(victim)) {
+                Machine.kernelStats().numFaultEvictions++;
+            }
+        }
+        
+        int ppn = frames.allocate();
+        numInTransit++;
+        if (frames.numFree() < lowWatermark)
+            pageOutNeeded.wake();
+        return ppn;
+    }
+    
+    /**
+     * Allocate a frame to read a page ahead into, like
+     * <tt>pageAllocation()</tt>, but only if one is free beyond those kept
+     * for page faults.
+     *
+     * @return the physical page number of the frame, or -1 if there is none
+     * to spare.
+     */
+    public static int spareAllocation(){
+        Lib.assertTrue(pageLock.isHeldByCurrentThread());
+        
+        if (frames.numFree() <= lowWatermark)
+            return -1;
+        
+        numInTransit++;
+        return frames.allocate();
+    }
+    
+    /**
+     * Map a page into a frame from <tt>pageAllocation()</tt> that now holds
+     * it, and which is now the same as the page's copy in swap or its COFF
+     * file, if any. The caller must hold <tt>pageLock</tt>.
+     *
+     * @param process the process the page belongs to.
+     * @param entry the page's translation entry.
+     * @param ppn the physical page number of the frame.
+     */
+    public static void mapPage(VMProcess process, TranslationEntry entry, int ppn){
+        Lib.assertTrue(pageLock.isHeldByCurrentThread());
+        
+        numInTransit--;
+        invertedPT[ppn] = new invertedData(process, entry, false);
+        entry.ppn = ppn;
+        entry.dirty = false;
+        entry.valid = true;
+        replacementPolicy.pageLoaded(ppn);
+        unpinnedPage.wake();
+    }
+    
+    /**
+     * Return whether a page is being written out, by the page-out daemon or
+     * by a fault evicting it.
+     *
+     * @param entry the page's translation entry.
+     * @return <tt>true</tt> if the page is being written out.
+     */
+    public static boolean isPagingOut(TranslationEntry entry){
+        int ppn = entry.ppn;
+        return ppn >= 0 && ppn < pagingOut.length && pagingOut[ppn] != null
+            && pagingOut[ppn].entry == entry;
+    }
+    
+    /**
+     * If a faulting page is being written out, wait for the write to
+     * finish, and have the page mapped back into its frame instead of freeing
+     * the frame, so the fault does not have to read the page back in. The
+     * caller must hold <tt>pageLock</tt>.
+     *
+     * @param entry the faulting page's translation entry.
+     * @return <tt>true</tt> if the page was mapped back in.
+     */
+    public static boolean reclaim(TranslationEntry entry){
+        if (!isPagingOut(entry))
+            return false;
+        
+        while (isPagingOut(entry)) {
+            pagingOut[entry.ppn].wanted = true;
+            pageOutDone.sleep();
+        }
+        
+        return entry.valid;
+    }
+    
+    /**
+     * Evict the page in a frame, writing it to swap first if it is dirty, and
+     * free the frame. The caller must hold <tt>pageLock</tt>. If the page is
+     * dirty, the frame is marked as being paged out, like the daemon's, and
+     * <tt>pageLock</tt> is released while it is written, so the frame may
+     * have been taken again by the time this returns.
+     *
+     * @param ppn the physical page number of the frame.
+     * @return <tt>true</tt> if the page was evicted, or <tt>false</tt> if it
+     * was faulted on, or its process exited, while it was written.
+     */
+    private static boolean evict(int ppn) {
+        invertedData frame = invertedPT[ppn];
+        
+        // invalidate the page first, so it cannot change while it is written
+        frame.entry.valid = false;
+        invertedPT[ppn] = null;
+        replacementPolicy.pageFreed(ppn);
+        
+        if (!frame.entry.dirty) {
+            frames.free(ppn);
+            return true;
         }
         
-        if(numPinned == invertedPT.length){
-            unpinnedPage.sleep(); //all pages pinned
+        int[] swapSlot = frame.process.swapSlot;
+        int vpn = frame.entry.vpn;
+        if (swapSlot[vpn] < 0)
+            swapSlot[vpn] = swap.allocate(1);
+        int slot = swapSlot[vpn];
+        
+        pagingOut[ppn] = frame;
+        numInTransit++;
+        
+        pageLock.release();
+        writeSwap(slot, new int[] { ppn }, 1);
+        pageLock.acquire();
+        
+        boolean evicted = finishPageOut(frame, ppn, slot);
+        pageOutDone.wakeAll();
+        return evicted;
+    }
+    
+    /**
+     * Finish writing a page out, once it is in swap, by freeing its frame,
+     * or by mapping it back in if it was faulted on meanwhile. The caller
+     * must hold <tt>pageLock</tt>, and wake any threads waiting on
+     * <tt>pageOutDone</tt>.
+     *
+     * @param frame the page's entry from <tt>invertedPT</tt>.
+     * @param ppn the physical page number of its frame.
+     * @param slot the swap slot it was written to.
+     * @return <tt>true</tt> if the frame was freed because the page was
+     * evicted.
+     */
+    private static boolean finishPageOut(invertedData frame, int ppn, int slot) {
+        numInTransit--;
+        pagingOut[ppn] = null;
+        
+        if (frame.process.swapSlot == null) {
+            // the process exited meanwhile, leaving this to us
+            swap.free(slot);
+            frames.free(ppn);
+            return false;
+        } else if (frame.wanted) {
+            // faulted on meanwhile; now it is clean
+            frame.wanted = false;
+            invertedPT[ppn] = frame;
+            frame.entry.dirty = false;
+            frame.entry.valid = true;
+            replacementPolicy.pageLoaded(ppn);
+            Machine.kernelStats().numReclaims++;
+            return false;
+        } else {
+            frames.free(ppn);
+            return true;
         }
-        //Replacement algorithm
-        while(invertedPT[victim].entry.used == true ||invertedPT[victim].pinned ==true){
-            invertedPT[victim].entry.used = false;
-            victim = (victim + 1) % invertedPT.length;
+    }
+    
+    /**
+     * Return whether any frame holds a page that could be evicted.
+     */
+    private static boolean canEvict() {
+        return frames.numFree() + numPinned + numInTransit < invertedPT.length;
+    }
+    
+    /**
+     * The page-out daemon. Sleeps until fewer than <tt>lowWatermark</tt>
+     * frames are free, then evicts pages until <tt>highWatermark</tt> frames
+     * are, <tt>pageOutBatch</tt> at a time, letting faulting threads in
+     * between batches.
+     */
+    private static void pageOut() {
+        pageLock.acquire();
+        
+        while (true) {
+            while (frames.numFree() >= lowWatermark || !canEvict())
+                pageOutNeeded.sleep();
+            
+            // if every page is pinned, wait for the next fault to try again
+            if (!pageOutBatch())
+                pageOutNeeded.sleep();
+            
+            pageLock.release();
+            KThread.yield();
+            pageLock.acquire();
+        }
+    }
+    
+    /**
+     * Evict a batch of pages for the page-out daemon. The dirty pages of each
+     * process are given a fresh run of swap slots, in page order, and written
+     * to it with one file operation, without holding <tt>pageLock</tt>, so
+     * that faulting threads can read pages in at the same time.
+     *
+     * @return <tt>true</tt> if any page was evicted.
+     */
+    private static boolean pageOutBatch() {
+        invertedData[] batch = new invertedData[pageOutBatch];
+        int numDirty = 0, numEvicted = 0;
+        
+        for (; numEvicted < pageOutBatch
+                 && frames.numFree() + numDirty < highWatermark && canEvict(); numEvicted++) {
+            int ppn = replacementPolicy.chooseVictim();
+            if (ppn == -1)
+                break;
+            
+            invertedData frame = invertedPT[ppn];
+            
+            frame.entry.valid = false;
+            invertedPT[ppn] = null;
+            replacementPolicy.pageFreed(ppn);
+            
+            if (frame.entry.dirty) {
+                pagingOut[ppn] = frame;
+                numInTransit++;
+                batch[numDirty++] = frame;
+            } else {
+                // its copy in swap or its COFF file is still good
+                frames.free(ppn);
+                Machine.kernelStats().numPageOuts++;
+            }
         }
         
-        int toEvict = victim;
-        victim = (victim + 1) % invertedPT.length;
-        if(invertedPT[toEvict].entry.dirty==true)
-            swapOut(toEvict);
-        invertedPT[toEvict].entry.valid = false;
-        return toEvict;
+        if (numDirty == 0)
+            return numEvicted > 0;
+        
+        Arrays.sort(batch, 0, numDirty, new Comparator<invertedData>() {
+            public int compare(invertedData a, invertedData b) {
+                if (a.process != b.process)
+                    return Integer.compare(System.identityHashCode(a.process),
+                                           System.identityHashCode(b.process));
+                return Integer.compare(a.entry.vpn, b.entry.vpn);
+            }
+        });
+        
+        int[] ppns = new int[numDirty], slots = new int[numDirty];
+        for (int i = 0; i < numDirty; i++)
+            ppns[i] = batch[i].entry.ppn;
+        
+        int[] runStart = new int[numDirty], runLength = new int[numDirty];
+        int numRuns = 0;
+        for (int i = 0; i < numDirty; ) {
+            int end = i + 1;
+            while (end < numDirty && batch[end].process == batch[i].process)
+                end++;
+            
+            int[] swapSlot = batch[i].process.swapSlot;
+            int slot = swap.allocate(end - i);
+            for (int j = i; j < end; j++) {
+                int vpn = batch[j].entry.vpn;
+                if (swapSlot[vpn] >= 0)
+                    swap.free(swapSlot[vpn]);
+                swapSlot[vpn] = slots[j] = slot + (j - i);
+            }
+            
+            runStart[numRuns] = i;
+            runLength[numRuns++] = end - i;
+            i = end;
+        }
+        
+        pageLock.release();
+        for (int r = 0; r < numRuns; r++) {
+            int i = runStart[r];
+            writeSwap(slots[i], Arrays.copyOfRange(ppns, i, i + runLength[r]),
+                      runLength[r]);
+        }
+        pageLock.acquire();
+        
+        for (int i = 0; i < numDirty; i++) {
+            if (finishPageOut(batch[i], ppns[i], slots[i]))
+                Machine.kernelStats().numPageOuts++;
+        }
+        
+        pageOutDone.wakeAll();
+        unpinnedPage.wake();
+        return true;
     }
     
     public static class invertedData {
         VMProcess process;
         TranslationEntry entry;
         boolean pinned;
+        /** Set if the page is faulted on while it is written out. */
+        boolean wanted;
         public invertedData(VMProcess process, TranslationEntry entry, boolean pinned){
             this.process = process;
             this.entry = entry;
@@ -151,17 +454,50 @@ public class VMKernel extends UserKernel {
     
     private static final char dbgVM = 'v';
     //public static LinkedList <Integer> VMFreePage = new LinkedList <Integer>();
-    public static int spn;
-    public static Lock spnLock;
     public static OpenFile swapFile;
+    /** The slots in use in the swap file, guarded by <tt>pageLock</tt>. */
+    public static SwapAllocator swap;
     public static Lock swapFileLock;
     public static String swapFileName = ".TEM";
     public static invertedData[] invertedPT;
     public static Lock invertedLock;
-    public static int victim;
-    public static LinkedList<Integer> freeSwapList;
-    public static Lock swapListLock;
+    /** The page replacement policy, named by <tt>VMKernel.replacementPolicy</tt>. */
+    public static PageReplacementPolicy replacementPolicy;
     public static int numPinned;
-    public static Lock pinnedLock;
+    
+    /** The number of frames being filled, or written out. */
+    private static int numInTransit;
+    
+    /** The frames being written out, and their pages. */
+    private static invertedData[] pagingOut;
     public static Condition unpinnedPage;
+    
+    /**
+     * Guards the frames, <tt>invertedPT</tt>, the replacement policy, and
+     * every page table entry's <tt>valid</tt> bit and frame, between page
+     * faults, the page-out daemon, and processes exiting.
+     */
+    public static Lock pageLock;
+    
+    /** Signalled when the page-out daemon should free some frames. */
+    private static Condition pageOutNeeded;
+    
+    /** Signalled when pages being written out are in swap. */
+    private static Condition pageOutDone;
+    
+    /**
+     * The page-out daemon runs when fewer than <tt>lowWatermark</tt> frames
+     * are free, until <tt>highWatermark</tt> are. It is not started if
+     * <tt>lowWatermark</tt> is 0.
+     */
+    private static int lowWatermark, highWatermark;
+    
+    /** The number of pages the page-out daemon evicts at a time. */
+    private static int pageOutBatch;
+    
+    /**
+     * The most pages a fault reads from swap at once, the faulting page and
+     * the ones after it that were swapped out to the slots after its own.
+     */
+    public static int swapCluster;
 }
@@ -5,6 +5,8 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Arrays;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
  */
@@ -48,12 +50,15 @@ public class VMProcess extends UserProcess {
             return false;
         }
         */
-        //coffSectionNum = new int[numPages];
         //coffPin =  new int[numPages];
         pageTable = new TranslationEntry[numPages]; //create a page table with the size numPage which we need
+        coffSection = new int[numPages];
+        coffPage = new int[numPages];
+        Arrays.fill(coffSection, -1); //pages outside every section start out zeroed
+        swapSlot = new int[numPages];
+        Arrays.fill(swapSlot, -1);
         
         for (int i = 0; i < numPages; i++){
-            //int ppn = UserKernel.freePage.removeFirst(); //get the vpn from the physical memory
             pageTable[i] = new TranslationEntry(i, i, false, false, false, false); //translate vpn to ppn with translationEntry
         }
         
@@ -67,8 +72,9 @@ public class VMProcess extends UserProcess {
             for (int i = 0; i < section.getLength(); i++) {
                 int vpn = section.getFirstVPN() + i;
                 if(pageTable[vpn] == null) return false;
-                pageTable[vpn].vpn = i;
                 pageTable[vpn].readOnly = section.isReadOnly(); //set read only bit to each entry in page table
+                coffSection[vpn] = s; //remember where to load the page from on its first fault
+                coffPage[vpn] = i;
             }
         }
         
@@ -91,18 +97,11 @@ public class VMProcess extends UserProcess {
             //then it's not valid
             if(vpn<0||vpn>=pageTable.length)
                 break;
-            if(pageTable[vpn].valid == false){
-                handlePageFault(vpn);
-            }
             //pageTable[vpn].used = true;
             //get the offset from virtual address
             int offSet = Processor.offsetFromAddress(vaddr);
             // get ppn by accessing pageTale according to vpn index
-            int ppn = pageTable[vpn].ppn;
-            VMKernel.invertedPT[ppn].pinned =  true;
-            VMKernel.pinnedLock.acquire();
-            VMKernel.numPinned++;
-            VMKernel.pinnedLock.release();
+            int ppn = pinPage(vpn);
             //where to start reading in physical memory
             int paddr = Processor.pageSize*ppn +offSet;
             //available space left for each page
@@ -122,13 +121,7 @@ public class VMProcess extends UserProcess {
             vaddr += actualRead;
             offset += actualRead;
             amount += actualRead;
-            VMKernel.invertedPT[ppn].pinned =  false;
-            VMKernel.pinnedLock.acquire();
-            VMKernel.numPinned--;
-            if(VMKernel.numPinned == VMKernel.invertedPT.length-1){
-                VMKernel.unpinnedPage.wake();
-            }
-            VMKernel.pinnedLock.release();
+            unpinPage(ppn);
         }
         
         return amount;
@@ -151,19 +144,12 @@ public class VMProcess extends UserProcess {
             //then it's not valid
             if(vpn<0||vpn>=pageTable.length)
                 break;
-            if(pageTable[vpn].valid == false){
-                handlePageFault(vpn);
-            }
-            pageTable[vpn].dirty = true;//set the dirty bit to true
             //pageTable[vpn].used = true;
             //get the offset from virtual address
             int offSet = Processor.offsetFromAddress(vaddr);
             //get ppn by accessing pageTable at index of vpn
-            int ppn = pageTable[vpn].ppn;
-            VMKernel.invertedPT[ppn].pinned =  true;
-            VMKernel.pinnedLock.acquire();
-            VMKernel.numPinned++;
-            VMKernel.pinnedLock.release();
+            int ppn = pinPage(vpn);
+            pageTable[vpn].dirty = true;//set the dirty bit to true
             int paddr = Processor.pageSize*ppn +offSet;
             //available spage left in each page
             int off = Processor.pageSize - offSet;
@@ -181,60 +167,140 @@ public class VMProcess extends UserProcess {
             vaddr += actualRead;
             offset += actualRead;
             amount += actualRead;
-            VMKernel.invertedPT[ppn].pinned =  false;
-            VMKernel.pinnedLock.acquire();
-            VMKernel.numPinned--;
-            if(VMKernel.numPinned == VMKernel.invertedPT.length-1){
-                VMKernel.unpinnedPage.wake();
-            }
-            VMKernel.pinnedLock.release();
+            unpinPage(ppn);
         }
         return amount;
     }
 
+    /**
+     * Fault in a page if it is not resident, and pin it, so that its frame
+     * stays put while the kernel copies to or from it.
+     *
+     * @param vpn the virtual page to pin.
+     * @return the frame holding the page.
+     */
+    private int pinPage(int vpn) {
+        VMKernel.pageLock.acquire();
+        if (!pageTable[vpn].valid)
+            loadPage(vpn);
+        int ppn = pageTable[vpn].ppn;
+        VMKernel.invertedPT[ppn].pinned = true;
+        VMKernel.numPinned++;
+        VMKernel.pageLock.release();
+        return ppn;
+    }
+    
+    /**
+     * Unpin a frame pinned by <tt>pinPage()</tt>.
+     *
+     * @param ppn the frame to unpin.
+     */
+    private void unpinPage(int ppn) {
+        VMKernel.pageLock.acquire();
+        VMKernel.invertedPT[ppn].pinned = false;
+        VMKernel.numPinned--;
+        VMKernel.unpinnedPage.wake();
+        VMKernel.pageLock.release();
+    }
+    
+    /**
+     * Handle a page fault on a page, unless it was made resident while the
+     * faulting thread waited for <tt>VMKernel.pageLock</tt>. The time taken,
+     * waiting included, is added to <tt>KernelStats.faultTicks</tt>.
+     *
+     * @param faultVPN the page that faulted.
+     */
     public void handlePageFault(int faultVPN){
-    	if(pageTable[faultVPN].dirty == true && pageTable[faultVPN].readOnly == false){
-    		int ppn = VMKernel.pageAllocation();
-            VMKernel.swapIn(faultVPN, this, ppn);
-            pageTable[faultVPN].valid = true;
-            VMKernel.invertedPT[ppn] = new VMKernel.invertedData (this, pageTable[faultVPN], false);
-    	} else {
-            for (int s = 0; s < coff.getNumSections(); s++) {
-                CoffSection section = coff.getSection(s);
-                Lib.debug(dbgProcess, "\tinitializing " + section.getName()
-                          + " section (" + section.getLength() + " pages)");
-                for (int i = 0; i < section.getLength(); i++) {
-                    int vpn = section.getFirstVPN() + i;
-                    if(faultVPN == vpn){
-                        if(UserKernel.freePage.size()>= 0){
-                            int ppn = VMKernel.pageAllocation();
-                            VMKernel.invertedPT[ppn] = new VMKernel.invertedData (this, pageTable[faultVPN], false);
-                            if(pageTable[faultVPN] == null) return;
-                            pageTable[faultVPN].ppn = ppn;
-                            section.loadPage(i, ppn);
-                            pageTable[faultVPN].valid = true;
-                            return;
-                        }
-                    }
-                }
-            }
-            
-            int ppn = VMKernel.pageAllocation();
-            VMKernel.invertedPT[ppn] = new VMKernel.invertedData (this, pageTable[faultVPN], false);
-            pageTable[faultVPN].ppn = ppn;
+        long startTime = Machine.timer().getTime();
+        
+        VMKernel.pageLock.acquire();
+        if (!pageTable[faultVPN].valid)
+            loadPage(faultVPN);
+        VMKernel.pageLock.release();
+        
+        Machine.kernelStats().faultTicks += Machine.timer().getTime() - startTime;
+    }
+    
+    /**
+     * Bring a page into a frame, from swap, its COFF section, or as zeros,
+     * unless it is still in the frame it is being written out from. The
+     * caller must hold <tt>VMKernel.pageLock</tt>, which is released while
+     * the frame is filled.
+     *
+     * @param faultVPN the page to bring in.
+     */
+    private void loadPage(int faultVPN){
+        TranslationEntry entry = pageTable[faultVPN];
+        if (VMKernel.reclaim(entry))
+            return;
+        
+        int ppn = VMKernel.pageAllocation();
+        int slot = swapSlot[faultVPN];
+        
+        //read ahead the pages after this one that are in the slots after its
+        //own, as long as there are frames to spare
+        int[] ppns = new int[VMKernel.swapCluster];
+        ppns[0] = ppn;
+        int n = 1;
+        while (slot >= 0 && n < ppns.length && faultVPN + n < numPages
+               && swapSlot[faultVPN + n] == slot + n
+               && !pageTable[faultVPN + n].valid
+               && !VMKernel.isPagingOut(pageTable[faultVPN + n])) {
+            int extra = VMKernel.spareAllocation();
+            if (extra == -1)
+                break;
+            ppns[n++] = extra;
+        }
+        
+        //fill the frame without holding the lock, so other faults and the
+        //page-out daemon can do their I/O meanwhile
+        VMKernel.pageLock.release();
+    	if(slot >= 0){
+            VMKernel.readSwap(slot, ppns, n);
+    	} else if (coffSection[faultVPN] >= 0) {
+            //the page belongs to a section, so load it straight from the COFF file
+            CoffSection section = coff.getSection(coffSection[faultVPN]);
+            Lib.debug(dbgProcess, "\tinitializing " + section.getName()
+                      + " section page " + coffPage[faultVPN]);
+            section.loadPage(coffPage[faultVPN], ppn);
+            Machine.kernelStats().numCOFFReads++;
+        } else {
             byte[] memory = Machine.processor().getMemory();
-            byte[] buffer = new byte[pageSize];
-            System.arraycopy(buffer, 0, memory, pageTable[faultVPN].ppn*pageSize, pageSize);
-            pageTable[faultVPN].valid = true;
+            Arrays.fill(memory, ppn*pageSize, (ppn+1)*pageSize, (byte) 0); //zero the page
         } 
-               
+        VMKernel.pageLock.acquire();
+        VMKernel.mapPage(this, entry, ppn);
+        
+        for (int i = 1; i < n; i++) {
+            pageTable[faultVPN + i].used = false;
+            VMKernel.mapPage(this, pageTable[faultVPN + i], ppns[i]);
+        }
+        Machine.kernelStats().numReadAheads += n - 1;
     }
     
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
-        super.unloadSections();
+        // only the frames this process still holds are free again; its page
+        // table entries may name frames that have since been given away
+        VMKernel.pageLock.acquire();
+        for (int ppn = 0; ppn < VMKernel.invertedPT.length; ppn++) {
+            if (VMKernel.invertedPT[ppn] != null
+                && VMKernel.invertedPT[ppn].process == this) {
+                VMKernel.invertedPT[ppn] = null;
+                VMKernel.replacementPolicy.pageFreed(ppn);
+                UserKernel.frames.free(ppn);
+            }
+        }
+        
+        // whoever is still writing to a slot frees it
+        for (int vpn = 0; swapSlot != null && vpn < numPages; vpn++) {
+            if (swapSlot[vpn] >= 0 && !VMKernel.isPagingOut(pageTable[vpn]))
+                VMKernel.swap.free(swapSlot[vpn]);
+        }
+        swapSlot = null;
+        VMKernel.pageLock.release();
     }
     
     /**
@@ -262,11 +328,22 @@ public class VMProcess extends UserProcess {
     private static final int pageSize = Processor.pageSize;
     
     private static final char dbgProcess = 'a';
+    
+    /** The COFF section each virtual page is loaded from, or -1 for none. */
+    private int[] coffSection;
+    
+    /** The page within that section. */
     private int[] coffPage;
     
+    /**
+     * The swap slot holding a copy of each virtual page, or -1 for none.
+     * Guarded by <tt>VMKernel.pageLock</tt>, and <tt>null</tt> once the
+     * process has exited.
+     */
+    int[] swapSlot;
+    
     private static final char dbgVM = 'v';
     private static int lastVPN;
-    //private int[] coffSectionNum;
     // int[] coffPin;
     //private Lock VMPLock;
     
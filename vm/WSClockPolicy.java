@@ -0,0 +1,77 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * The WSClock page replacement policy. Each frame records when its page was
+ * last seen to be used, in ticks of <tt>Machine.timer().getTime()</tt>, and
+ * a page used within the last <tt>VMKernel.workingSetWindow</tt> ticks is in
+ * its process's working set.
+ *
+ * <p>
+ * A hand sweeps the frames. A frame whose page was used since the hand last
+ * passed has its <tt>used</tt> bit cleared and its time updated. The first
+ * clean page found outside the working set is evicted. Resident pages are
+ * never written out ahead of time, so if a whole sweep finds only dirty pages
+ * outside the working set, the first of them is evicted. If it finds none at
+ * all, the page used longest ago is.
+ */
+public class WSClockPolicy implements PageReplacementPolicy {
+    /**
+     * Allocate a new WSClock policy.
+     */
+    public WSClockPolicy() {
+        window = Config.getInteger("VMKernel.workingSetWindow", 10000);
+        lastUsed = new long[Machine.processor().getNumPhysPages()];
+    }
+
+    public int chooseVictim() {
+        VMKernel.invertedData[] frames = VMKernel.invertedPT;
+        long time = Machine.timer().getTime();
+        int oldDirty = -1, oldest = -1;
+
+        for (int i = 0; i < frames.length; i++) {
+            VMKernel.invertedData frame = frames[hand];
+            int ppn = hand;
+            hand = (hand + 1) % frames.length;
+
+            if (frame == null || frame.pinned)
+                continue;
+
+            if (frame.entry.used) {
+                frame.entry.used = false;
+                lastUsed[ppn] = time;
+            }
+            else if (time - lastUsed[ppn] > window) {
+                if (!frame.entry.dirty)
+                    return ppn;
+
+                if (oldDirty == -1)
+                    oldDirty = ppn;
+            }
+
+            if (oldest == -1 || lastUsed[ppn] < lastUsed[oldest])
+                oldest = ppn;
+        }
+
+        int victim = (oldDirty != -1) ? oldDirty : oldest;
+        hand = (victim + 1) % frames.length;
+        return victim;
+    }
+
+    public void pageLoaded(int ppn) {
+        lastUsed[ppn] = Machine.timer().getTime();
+    }
+
+    public void pageFreed(int ppn) {
+    }
+
+    /** The next frame the hand will look at. */
+    private int hand = 0;
+
+    /** The size of the working set window, in ticks. */
+    private long window;
+
+    /** The time at which the page in each frame was last seen to be used. */
+    private long[] lastUsed;
+}